@@ -4,6 +4,7 @@ Basic Python Server for STOMP Assignment – Stage 3.3
 """
 
 import socket
+import struct
 import sys
 import threading
 import sqlite3
@@ -12,17 +13,154 @@ import os
 SERVER_NAME = "STOMP_PYTHON_SQL_SERVER"  # DO NOT CHANGE!
 DB_FILE = "stomp_server.db"              # DO NOT CHANGE!
 
+# Binary requests (prepared statements with bound parameters):
+#   request  = 0x02, u32 length, payload
+#   payload  = 'P' u16 id, text sql                     prepare sql under id (per connection)
+#            | 'Q' u16 id, params                       run a SELECT, return its rows
+#            | 'E' u16 id, params                       run an INSERT/UPDATE
+#            | 'B' u16 count, count * (u16 id, params)  run several statements in one transaction
+#   params   = u16 count, count * value
+#   value    = 0x00 (NULL) | 0x01 text
+#   text     = u32 length, UTF-8 bytes
+#   response = 0x02, u32 length, (0x00 u32 rows, u16 columns, rows * columns * value) | (0x01 text error)
+# All integers are big-endian.
+# Text requests (a NUL-terminated SQL string, answered by a NUL-terminated string) are the
+# assignment's original protocol. The Java server no longer sends them; they stay so the sidecar
+# still serves the course's reference clients and manual testing (e.g. printf 'SELECT ...\0' | nc).
+BINARY_REQUEST = 0x02
 
-def recv_null_terminated(sock: socket.socket) -> str:
-    data = b""
-    while True:
-        chunk = sock.recv(1024)
-        if not chunk:
-            return ""
-        data += chunk
-        if b"\0" in data:
-            msg, _ = data.split(b"\0", 1)
-            return msg.decode("utf-8", errors="replace")
+
+class NullTerminatedReader:
+    """ Splits a persistent connection into requests, keeping leftover bytes.
+        Text requests are null-terminated strings; binary ones (bytes) are length-prefixed. """
+
+    def __init__(self, sock: socket.socket):
+        self.sock = sock
+        self.buffer = b""
+
+    def _fill(self, size):
+        while len(self.buffer) < size:
+            chunk = self.sock.recv(max(4096, size - len(self.buffer)))
+            if not chunk:
+                return False
+            self.buffer += chunk
+        return True
+
+    def next_message(self):
+        if not self._fill(1):
+            return None
+        if self.buffer[0] == BINARY_REQUEST:
+            if not self._fill(5):
+                return None
+            length = struct.unpack_from(">I", self.buffer, 1)[0]
+            if not self._fill(5 + length):
+                return None
+            msg, self.buffer = self.buffer[5:5 + length], self.buffer[5 + length:]
+            return msg
+        while b"\0" not in self.buffer:
+            chunk = self.sock.recv(4096)
+            if not chunk:
+                return None
+            self.buffer += chunk
+        msg, self.buffer = self.buffer.split(b"\0", 1)
+        return msg.decode("utf-8", errors="replace")
+
+
+class BinaryPayload:
+    """ Reads the fields of a binary request payload. """
+
+    def __init__(self, data: bytes):
+        self.data = data
+        self.pos = 0
+
+    def u8(self):
+        value = self.data[self.pos]
+        self.pos += 1
+        return value
+
+    def u16(self):
+        value = struct.unpack_from(">H", self.data, self.pos)[0]
+        self.pos += 2
+        return value
+
+    def text(self):
+        length = struct.unpack_from(">I", self.data, self.pos)[0]
+        self.pos += 4
+        value = self.data[self.pos:self.pos + length].decode("utf-8")
+        self.pos += length
+        return value
+
+    def params(self):
+        values = []
+        for _ in range(self.u16()):
+            values.append(self.text() if self.u8() else None)
+        return values
+
+
+def encode_text(value: str) -> bytes:
+    data = value.encode("utf-8")
+    return struct.pack(">I", len(data)) + data
+
+
+def encode_value(value) -> bytes:
+    if value is None:
+        return b"\x00"
+    return b"\x01" + encode_text(str(value))
+
+
+def binary_response(body: bytes) -> bytes:
+    return bytes([BINARY_REQUEST]) + struct.pack(">I", len(body)) + body
+
+
+class PreparedSession:
+    """ One client's binary session: a long-lived sqlite connection (whose statement cache keeps
+        the prepared statements compiled) and the statements the client prepared, by id. """
+
+    def __init__(self):
+        self.conn = None
+        self.statements = {}
+
+    def connection(self):
+        if self.conn is None:
+            self.conn = sqlite3.connect(DB_FILE, cached_statements=256)
+        return self.conn
+
+    def handle(self, payload: bytes) -> bytes:
+        request = BinaryPayload(payload)
+        conn = self.connection()
+        try:
+            op = chr(request.u8())
+            if op == "P":
+                statement_id = request.u16()
+                self.statements[statement_id] = request.text()
+                return binary_response(b"\x00" + struct.pack(">IH", 0, 0))
+            if op == "Q":
+                cursor = conn.execute(self.statements[request.u16()], request.params())
+                rows = cursor.fetchall()
+                columns = len(cursor.description) if cursor.description else 0
+                body = [b"\x00", struct.pack(">IH", len(rows), columns)]
+                for row in rows:
+                    for value in row:
+                        body.append(encode_value(value))
+                return binary_response(b"".join(body))
+            if op == "E":
+                with conn:
+                    conn.execute(self.statements[request.u16()], request.params())
+                return binary_response(b"\x00" + struct.pack(">IH", 0, 0))
+            if op == "B":
+                with conn:  # one transaction, rolled back on error
+                    for _ in range(request.u16()):
+                        conn.execute(self.statements[request.u16()], request.params())
+                return binary_response(b"\x00" + struct.pack(">IH", 0, 0))
+            raise ValueError(f"unknown operation {op!r}")
+        except KeyError as e:
+            return binary_response(b"\x01" + encode_text(f"Error: statement {e} was not prepared"))
+        except Exception as e:
+            return binary_response(b"\x01" + encode_text(f"Error: {e}"))
+
+    def close(self):
+        if self.conn is not None:
+            self.conn.close()
 
 
 def init_database():
@@ -109,12 +247,18 @@ def execute_sql_query(sql_query: str) -> str:
 def handle_client(client_socket: socket.socket, addr):
     print(f"[{SERVER_NAME}] Client connected from {addr}")
 
+    reader = NullTerminatedReader(client_socket)
+    session = PreparedSession()
     try:
         while True:
-            message = recv_null_terminated(client_socket)
-            if message == "":
+            message = reader.next_message()
+            if message is None:
                 break
 
+            if isinstance(message, bytes):
+                client_socket.sendall(session.handle(message))
+                continue
+
             print(f"[{SERVER_NAME}] Received:")
             print(message)
 
@@ -133,6 +277,7 @@ def handle_client(client_socket: socket.socket, addr):
     except Exception as e:
         print(f"[{SERVER_NAME}] Error handling client {addr}: {e}")
     finally:
+        session.close()
         try:
             client_socket.close()
         except Exception:
@@ -149,7 +294,7 @@ def start_server(host="127.0.0.1", port=7778):
 
     try:
         server_socket.bind((host, port))
-        server_socket.listen(5)
+        server_socket.listen(64)
         print(f"[{SERVER_NAME}] Server started on {host}:{port}")
         print(f"[{SERVER_NAME}] Waiting for connections...")
 
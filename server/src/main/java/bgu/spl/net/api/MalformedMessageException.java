@@ -0,0 +1,15 @@
+package bgu.spl.net.api;
+
+/**
+ * Thrown by a {@link MessageEncoderDecoder} when the received bytes can not be a valid message,
+ * e.g. a frame larger than allowed. The connection handler then stops reading from the client,
+ * sends it the protocol's error (if any) and closes the connection; the decoder is not used again.
+ */
+public class MalformedMessageException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MalformedMessageException(String message) {
+        super(message);
+    }
+}
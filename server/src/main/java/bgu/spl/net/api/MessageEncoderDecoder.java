@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +14,38 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decodes all the bytes remaining in the buffer, passing every completed message to the consumer.
+     * the default implementation feeds the bytes one by one to {@link #decodeNextByte(byte)};
+     * codecs that can find message boundaries in bulk should override it.
+     *
+     * @param buffer the received bytes, consumed up to its limit
+     * @param consumer receives the completed messages, in order
+     * @throws MalformedMessageException if the bytes can not be a valid message
+     */
+    default void decode(ByteBuffer buffer, Consumer<T> consumer) {
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                consumer.accept(nextMessage);
+            }
+        }
+    }
+
+    /**
+     * decodes the complete messages at the start of the buffer, but leaves the bytes of an
+     * incomplete last message in it (unconsumed) instead of copying them aside. the caller keeps
+     * those bytes and calls again with the same bytes followed by the ones received next.
+     * the default implementation consumes everything through {@link #decode}.
+     *
+     * @param buffer the received bytes; on return its position is at the first byte not decoded
+     * @param consumer receives the completed messages, in order
+     * @throws MalformedMessageException if the bytes can not be a valid message
+     */
+    default void decodeComplete(ByteBuffer buffer, Consumer<T> consumer) {
+        decode(buffer, consumer);
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -14,4 +14,28 @@ public interface StompMessagingProtocol<T>  {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+	/**
+	 * Called by the connection handler once the connection is closed, for any reason
+	 * (DISCONNECT, ERROR or the client just dropping). May be called more than once.
+	 */
+	default void onClose() {
+	}
+
+	/**
+	 * @return the last frame sent to a client that is disconnected because too many frames
+	 * were waiting to be written to it, or null to just close the connection
+	 */
+	default T overflowError() {
+		return null;
+	}
+
+	/**
+	 * @param reason why the client's input could not be decoded
+	 * @return the last frame sent to a client that is disconnected because it sent something that
+	 * is not a valid message (see {@link MalformedMessageException}), or null to just close the connection
+	 */
+	default T malformedError(String reason) {
+		return null;
+	}
 }
@@ -1,23 +1,24 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import bgu.spl.net.srv.DatabaseService;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The authoritative registry of users. Authentication is served from memory:
+ * the map is warmed from the storage when the instance is created,
+ * and new registrations are written through to it.
+ */
 public class Database {
 	private final ConcurrentHashMap<String, User> userMap;
 	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
-	private final String sqlHost;
-	private final int sqlPort;
+	private final DatabaseService sql;
 
 	private Database() {
 		userMap = new ConcurrentHashMap<>();
 		connectionsIdMap = new ConcurrentHashMap<>();
-		// SQL server connection details
-		this.sqlHost = "127.0.0.1";
-		this.sqlPort = 7778;
+		sql = DatabaseService.getInstance();
+		loadUsers();
 	}
 
 	public static Database getInstance() {
@@ -25,40 +26,24 @@ public class Database {
 	}
 
 	/**
-	 * Execute SQL query and return result
-	 * @param sql SQL query string
-	 * @return Result string from SQL server
+	 * Fill the in-memory registry with every user already in the storage
 	 */
-	private String executeSQL(String sql) {
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			
-			// Send SQL with null terminator
-			out.print(sql + '\0');
-			out.flush();
-			
-			// Read response until null terminator
-			StringBuilder response = new StringBuilder();
-			int ch;
-			while ((ch = in.read()) != -1 && ch != '\0') {
-				response.append((char) ch);
-			}
-			
-			return response.toString();
-			
-		} catch (Exception e) {
-			System.err.println("SQL Error: " + e.getMessage());
-			return "ERROR:" + e.getMessage();
+	private void loadUsers() {
+		for (Map.Entry<String, String> entry : sql.loadUsers().entrySet()) {
+			String name = entry.getKey();
+			userMap.putIfAbsent(name, new User(-1, name, entry.getValue()));
 		}
+		System.out.println("Loaded " + userMap.size() + " users");
 	}
 
 	/**
-	 * Escape SQL special characters to prevent SQL injection
+	 * Look up a user that is not cached yet (e.g. the warm-up failed) before treating it as new
 	 */
-	private String escapeSql(String str) {
-		if (str == null) return "";
-		return str.replace("'", "''");
+	private void loadUser(String username) {
+		String password = sql.findPassword(username);
+		if (password != null) {
+			userMap.putIfAbsent(username, new User(-1, username, password));
+		}
 	}
 
 	public void addUser(User user) {
@@ -70,13 +55,12 @@ public class Database {
 		if (connectionsIdMap.containsKey(connectionId)) {
 			return LoginStatus.CLIENT_ALREADY_CONNECTED;
 		}
+		if (!userMap.containsKey(username)) {
+			loadUser(username);
+		}
 		if (addNewUserCase(connectionId, username, password)) {
-			// Log new user registration in SQL
-			String sql = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
-			);
-			executeSQL(sql);
+			// Write the new user through to the storage
+			sql.addUser(username, password);
 			
 			// Log login
 			logLogin(username);
@@ -92,11 +76,7 @@ public class Database {
 	}
 
 	private void logLogin(String username) {
-		String sql = String.format(
-			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
-			escapeSql(username)
-		);
-		executeSQL(sql);
+		sql.logLogin(username);
 	}
 
 	private LoginStatus userExistsCase(int connectionId, String username, String password) {
@@ -129,20 +109,18 @@ public class Database {
 		return false;
 	}
 
+	/**
+	 * Log out whoever is logged in on this connection. Safe to call more than once.
+	 */
 	public void logout(int connectionsId) {
-		User user = connectionsIdMap.get(connectionsId);
+		User user = connectionsIdMap.remove(connectionsId);
 		if (user != null) {
 			// Log logout in SQL
-			String sql = String.format(
-				"UPDATE login_history SET logout_time=datetime('now') " +
-				"WHERE username='%s' AND logout_time IS NULL " +
-				"ORDER BY login_time DESC LIMIT 1",
-				escapeSql(user.name)
-			);
-			executeSQL(sql);
+			sql.logLogout(user.name);
 			
-			user.logout();
-			connectionsIdMap.remove(connectionsId);
+			synchronized (user) {
+				user.logout();
+			}
 		}
 	}
 
@@ -150,104 +128,19 @@ public class Database {
 	 * Track file upload in SQL database
 	 * @param username User who uploaded the file
 	 * @param filename Name of the file
-	 * @param gameChannel Game channel the file was reported to
 	 */
-	public void trackFileUpload(String username, String filename, String gameChannel) {
-		String sql = String.format(
-			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
-			"VALUES ('%s', '%s', datetime('now'), '%s')",
-			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
-		);
-		executeSQL(sql);
+	public void trackFileUpload(String username, String filename) {
+		sql.trackFileUpload(username, filename);
 	}
 
 	/**
-	 * Generate and print server report using SQL queries
+	 * Print the server report (users, login history, file uploads), streamed from the storage
 	 */
 	public void printReport() {
-		System.out.println(repeat("=", 80));
-		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
-		System.out.println(repeat("=", 80));
-		
-		// List all users
-		System.out.println("\n1. REGISTERED USERS:");
-		System.out.println(repeat("-", 80));
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					System.out.println("   " + parts[i]);
-				}
-			} else {
-				System.out.println("   No users registered");
-			}
-		}
-		
-		// Login history for each user
-		System.out.println("\n2. LOGIN HISTORY:");
-		System.out.println(repeat("-", 80));
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + fields[1]);
-						System.out.println("      Logout: " + (fields[2].equals("None") ? "Still logged in" : fields[2]));
-					}
-				}
-			} else {
-				System.out.println("   No login history");
-			}
-		}
-		
-		// File uploads for each user
-		System.out.println("\n3. FILE UPLOADS:");
-		System.out.println(repeat("-", 80));
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + fields[1]);
-						System.out.println("      Time: " + fields[2]);
-						System.out.println("      Game: " + fields[3]);
-						System.out.println();
-					}
-				}
-			} else {
-				System.out.println("   No files uploaded");
-			}
-		}
-		
-	System.out.println(repeat("=", 80));
-}
-
-private String repeat(String str, int times) {
-	StringBuilder sb = new StringBuilder();
-	for (int i = 0; i < times; i++) {
-		sb.append(str);
+		sql.printReport();
 	}
-	return sb.toString();
-}
 
-private static class Instance {
-	static Database instance = new Database();
-}}
\ No newline at end of file
+	private static class Instance {
+		static Database instance = new Database();
+	}
+}
\ No newline at end of file
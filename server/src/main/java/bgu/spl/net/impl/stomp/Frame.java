@@ -1,63 +1,121 @@
 package bgu.spl.net.impl.stomp;
 
-import java.util.HashMap;
-import java.util.Map;
-
+/**
+ * A view over one decoded STOMP frame. The constructor makes a single pass to find the command
+ * and where the headers and the body start; headers are looked up in place on demand and the
+ * body string is only created when {@link #getBody()} is called.
+ */
 public class Frame {
-    private String command;
-    private Map<String, String> headers = new HashMap<>();
+    private final String message;
+    private final StompCommand type;
+    private final int commandStart;
+    private final int commandEnd;
+    private final int headersStart;
+    private final int headersEnd;
+    private final int bodyStart;
     private String body;
 
     public Frame(String message) {
-        String[] lines = message.split("\n");
-        int idx = 0;
-        
-        // 1. חילוץ הפקודה
-        if (lines.length > 0) {
-            this.command = lines[idx].trim();
-            idx++;
+        this.message = message;
+        int length = message.length();
+        int pos = 0;
+
+        // 1. חילוץ הפקודה (מדלגים על שורות ריקות שלפניה) וזיהוי הסוג שלה, בלי ליצור מחרוזת
+        int from = 0;
+        int to = 0;
+        while (pos < length) {
+            int eol = lineEnd(message, pos);
+            from = pos;
+            to = eol;
+            while (from < to && Character.isWhitespace(message.charAt(from))) from++;
+            while (to > from && Character.isWhitespace(message.charAt(to - 1))) to--;
+            pos = eol + 1;
+            if (from < to) {
+                break;
+            }
         }
+        this.commandStart = from;
+        this.commandEnd = to;
+        this.type = StompCommand.of(message, from, to);
 
-        // 2. חילוץ הכותרות
-        while (idx < lines.length) {
-            String line = lines[idx].trim();
-            if (line.isEmpty()) { // שורה ריקה מסמנת את סוף הכותרות
-                idx++;
+        // 2. איתור הכותרות - עד השורה הריקה הראשונה
+        this.headersStart = Math.min(pos, length);
+        int end = length;
+        int next = length;
+        while (pos < length) {
+            int eol = lineEnd(message, pos);
+            if (isBlank(message, pos, eol)) {
+                end = pos;
+                next = eol + 1;
                 break;
             }
-            
-            String[] parts = line.split(":", 2);
-            if (parts.length == 2) {
-                headers.put(parts[0], parts[1]);
+            pos = eol + 1;
+        }
+        this.headersEnd = Math.max(headersStart, end);
+
+        // 3. הגוף - כל מה שנשאר (נוצר רק כשמבקשים אותו)
+        this.bodyStart = Math.min(next, length);
+    }
+
+    // גטרים שיהיה נוח להשתמש בפרוטוקול
+    public StompCommand getType() { return type; }
+    public String getCommand() { return message.substring(commandStart, commandEnd); }
+
+    /**
+     * @return the value of the first header with this name, or null
+     */
+    public String getHeader(String key) {
+        int pos = headersStart;
+        while (pos < headersEnd) {
+            int eol = Math.min(lineEnd(message, pos), headersEnd);
+            int from = pos;
+            int to = eol;
+            while (from < to && Character.isWhitespace(message.charAt(from))) from++;
+            while (to > from && Character.isWhitespace(message.charAt(to - 1))) to--;
+            if (to - from > key.length() && message.charAt(from + key.length()) == ':'
+                    && message.regionMatches(from, key, 0, key.length())) {
+                return message.substring(from + key.length() + 1, to);
             }
-            idx++;
+            pos = eol + 1;
         }
+        return null;
+    }
 
-        // 3. חילוץ הגוף (כל מה שנשאר)
-        StringBuilder bodyBuilder = new StringBuilder();
-        while (idx < lines.length) {
-            bodyBuilder.append(lines[idx]).append("\n");
-            idx++;
+    /**
+     * With a content-length header the body is taken as is (it may contain NULs and
+     * surrounding whitespace; the decoder only accepts a frame whose body ends exactly where
+     * the content-length says), otherwise it is trimmed.
+     */
+    public String getBody() {
+        if (body == null) {
+            String raw = message.substring(bodyStart);
+            body = getHeader("content-length") != null ? raw : raw.trim();
         }
-        this.body = bodyBuilder.toString().trim();
+        return body;
     }
 
-    // גטרים שיהיה נוח להשתמש בפרוטוקול
-    public String getCommand() { return command; }
-    public String getHeader(String key) { return headers.get(key); }
-    public String getBody() { return body; }
-    
     // פונקציה לבניית המחרוזת חזרה (שימושי לשליחת תשובות)
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append(command).append("\n");
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            sb.append(entry.getKey()).append(":").append(entry.getValue()).append("\n");
-        }
+        sb.append(message, commandStart, commandEnd).append("\n");
+        sb.append(message, headersStart, headersEnd);
         sb.append("\n");
-        if (body != null && !body.isEmpty()) sb.append(body);
+        String b = getBody();
+        if (!b.isEmpty()) sb.append(b);
         sb.append("\u0000");
         return sb.toString();
     }
-}
\ No newline at end of file
+
+    private static int lineEnd(String message, int from) {
+        int eol = message.indexOf('\n', from);
+        return eol < 0 ? message.length() : eol;
+    }
+
+    private static boolean isBlank(String message, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(message.charAt(i))) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,24 @@
+package bgu.spl.net.impl.stomp;
+
+/**
+ * The client frames the server understands, resolved once while the frame is parsed.
+ */
+public enum StompCommand {
+    CONNECT, SUBSCRIBE, UNSUBSCRIBE, SEND, DISCONNECT, UNKNOWN;
+
+    private static final StompCommand[] KNOWN = { CONNECT, SUBSCRIBE, UNSUBSCRIBE, SEND, DISCONNECT };
+
+    /**
+     * Resolves the command written in message[from, to) without creating a String for it.
+     */
+    static StompCommand of(String message, int from, int to) {
+        int length = to - from;
+        for (StompCommand command : KNOWN) {
+            String name = command.name();
+            if (name.length() == length && message.regionMatches(from, name, 0, length)) {
+                return command;
+            }
+        }
+        return UNKNOWN;
+    }
+}
@@ -1,18 +1,29 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.api.MalformedMessageException;
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
 
      private byte[] bytes = new byte[1 << 10]; //start with 1k
     private int len = 0;
+    // בפענוח בתוך הבאפר: כמה בתים של הפריים החלקי כבר נסרקו
+    private int scanned = 0;
+
+    // פריים גדול מזה (כולל הכותרות) נדחה, כדי שלקוח לא יוכל לגרום לנו לאגור זיכרון בלי סוף
+    static final int MAX_FRAME_BYTES = Integer.getInteger("stomp.frame.max.bytes", 16 << 20);
+
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.UTF_8);
 
     @Override
     public String decodeNextByte(byte nextByte) {
         // שינוי קריטי: בודקים אם הגענו לתו ה-Null (\u0000) במקום ל-\n
-        if (nextByte == '\u0000') {
+        // (אלא אם ה-\0 נמצא בתוך גוף באורך שהוגדר ב-content-length)
+        if (nextByte == '\u0000' && terminates(bytes, 0, len)) {
             return popString();
         }
 
@@ -20,19 +31,217 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
         return null; // עדיין לא סיימנו לקרוא את ההודעה
     }
 
+    @Override
+    public void decode(ByteBuffer buffer, Consumer<String> consumer) {
+        while (buffer.hasRemaining()) {
+            if (len == 0) {
+                // שום דבר לא נאגר - מפענחים את הפריימים השלמים ישירות מהבאפר ומעתיקים רק את הזנב
+                decodeComplete(buffer, consumer);
+                scanned = 0;
+                pushBytes(buffer, buffer.remaining());
+                return;
+            }
+
+            int end = indexOfNull(buffer, buffer.position(), buffer.limit());
+            if (end < 0) {
+                // אין עדיין סוף פריים - שומרים את כל מה שהגיע בהעתקה אחת
+                pushBytes(buffer, buffer.remaining());
+                return;
+            }
+            pushBytes(buffer, end - buffer.position());
+            buffer.get(); // ה-\0
+            if (terminates(bytes, 0, len)) {
+                consumer.accept(popString());
+            } else {
+                pushByte((byte) '\u0000'); // חלק מהגוף
+            }
+        }
+    }
+
+    @Override
+    public void decodeComplete(ByteBuffer buffer, Consumer<String> consumer) {
+        if (len > 0) {
+            // פריים שהתחיל דרך decodeNextByte/decode ממשיך להיאסף שם
+            decode(buffer, consumer);
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int end = frameEnd(buffer, start, start + scanned);
+            if ((end < 0 ? buffer.limit() : end) - start > MAX_FRAME_BYTES) {
+                throw tooLarge();
+            }
+            if (end < 0) {
+                // פריים חלקי נשאר בבאפר; בקריאה הבאה ממשיכים לחפש מאיפה שעצרנו
+                scanned = buffer.limit() - start;
+                return;
+            }
+            scanned = 0;
+            consumer.accept(string(buffer, start, end));
+            buffer.position(end + 1);
+        }
+    }
+
+    // האינדקס של ה-\0 שסוגר את הפריים שמתחיל ב-start (מחפשים החל מ-from), או -1
+    private static int frameEnd(ByteBuffer buffer, int start, int from) {
+        int limit = buffer.limit();
+        while (true) {
+            int nul = indexOfNull(buffer, from, limit);
+            if (nul < 0 || terminates(buffer, start, nul)) {
+                return nul;
+            }
+            from = nul + 1;
+        }
+    }
+
+    // יוצרים את המחרוזת ישר מהבאפר; מבאפר direct - בהעתקה אחת למערך שחוזר על עצמו
+    private String string(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        if (length > bytes.length) {
+            bytes = new byte[Math.max(bytes.length * 2, length)];
+        }
+        ByteBuffer frame = buffer.duplicate();
+        frame.limit(end).position(start);
+        frame.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
     @Override
     public byte[] encode(String message) {
         // המרה של המחרוזת לבתים + הוספת תו הסיום \0 בסוף (חובה לפי הפרוטוקול)
         return (message + "\u0000").getBytes(StandardCharsets.UTF_8);
     }
 
+    /**
+     * @return true if a NUL at index nul ends the frame that starts at index start:
+     * always, unless the frame has a content-length header and the body is still shorter than that
+     * @throws MalformedMessageException if the byte right after the declared body is not the NUL
+     */
+    private static boolean terminates(ByteBuffer frame, int start, int nul) {
+        int bodyEnd = declaredBodyEnd(frame, start, nul);
+        if (bodyEnd < 0) {
+            return true;
+        }
+        if (nul < bodyEnd) {
+            return false; // NUL בתוך הגוף
+        }
+        if (nul > bodyEnd) {
+            // ה-NUL הראשון אחרי הגוף לא צמוד אליו: הגוף ארוך מה-content-length
+            throw new MalformedMessageException("The body is longer than its content-length");
+        }
+        return true;
+    }
+
+    private static boolean terminates(byte[] frame, int start, int nul) {
+        return terminates(ByteBuffer.wrap(frame), start, nul);
+    }
+
+    /**
+     * Scans the frame's headers (if they are complete before limit) for content-length.
+     * @return the index right after the declared body, or -1 if there is no content-length
+     * @throws MalformedMessageException if the content-length is not a valid body length
+     */
+    private static int declaredBodyEnd(ByteBuffer frame, int start, int limit) {
+        boolean seenCommand = false;
+        int contentLength = -1;
+        int lineStart = start;
+        for (int i = start; i < limit; i++) {
+            if (frame.get(i) != '\n') continue;
+
+            int lineEnd = (i > lineStart && frame.get(i - 1) == '\r') ? i - 1 : i;
+            if (lineEnd == lineStart) {
+                if (seenCommand) {
+                    // שורה ריקה - סוף הכותרות
+                    return contentLength < 0 ? -1 : i + 1 + contentLength;
+                }
+            } else if (!seenCommand) {
+                seenCommand = true;
+            } else if (contentLength < 0 && startsWith(frame, lineStart, lineEnd, CONTENT_LENGTH)) {
+                contentLength = parseLength(frame, lineStart + CONTENT_LENGTH.length, lineEnd);
+            }
+            lineStart = i + 1;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer frame, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (frame.get(from + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    // ערך שלילי, לא מספרי או גדול מהפריים המקסימלי לא יכול להיות אורך של גוף
+    private static int parseLength(ByteBuffer frame, int from, int to) {
+        long value = 0;
+        boolean digits = false;
+        for (int i = from; i < to; i++) {
+            byte b = frame.get(i);
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits = true;
+                if (value > MAX_FRAME_BYTES) {
+                    throw new MalformedMessageException("content-length is larger than the maximum frame size ("
+                            + MAX_FRAME_BYTES + " bytes)");
+                }
+            } else if (b != ' ' || digits) {
+                break;
+            }
+        }
+        if (!digits) {
+            throw new MalformedMessageException("content-length must be a non-negative number");
+        }
+        return (int) value;
+    }
+
+    // מחפש את ה-\0 הבא בלי לצרוך בתים; מחזיר אינדקס מוחלט או -1
+    private static int indexOfNull(ByteBuffer buffer, int from, int to) {
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for (int i = from + offset; i < to + offset; i++) {
+                if (array[i] == '\u0000') return i - offset;
+            }
+            return -1;
+        }
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\u0000') return i;
+        }
+        return -1;
+    }
+
+    private void pushBytes(ByteBuffer buffer, int count) {
+        if (len + count > MAX_FRAME_BYTES) {
+            throw tooLarge();
+        }
+        if (len + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, len + count));
+        }
+        buffer.get(bytes, len, count);
+        len += count;
+    }
+
     private void pushByte(byte nextByte) {
+        if (len >= MAX_FRAME_BYTES) {
+            throw tooLarge();
+        }
         if (len >= bytes.length) {
             bytes = Arrays.copyOf(bytes, len * 2);
         }
         bytes[len++] = nextByte;
     }
 
+    private MalformedMessageException tooLarge() {
+        len = 0;
+        scanned = 0;
+        return new MalformedMessageException("The frame is larger than the maximum frame size ("
+                + MAX_FRAME_BYTES + " bytes)");
+    }
+
     private String popString() {
         // יצירת המחרוזת מהבתים שאגרנו
         String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
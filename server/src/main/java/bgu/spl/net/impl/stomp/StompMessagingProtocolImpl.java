@@ -1,20 +1,40 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.impl.data.LoginStatus;
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.srv.ConnectionsImpl;
 import bgu.spl.net.srv.DatabaseService;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
 
+    // תשובות קבועות, מקודדות פעם אחת (כל שליחה קוראת מ-duplicate ולכן אפשר לשתף)
+    private static final ByteBuffer CONNECTED = encoded("CONNECTED\n" +
+                                                        "version:1.2\n" +
+                                                        "\n" +
+                                                        "\u0000");
+    private static final ByteBuffer RECEIPT_HEAD = encoded("RECEIPT\n" +
+                                                           "receipt-id:");
+    private static final ByteBuffer RECEIPT_TAIL = encoded("\n" +
+                                                           "\n" +
+                                                           "\u0000");
+    private static final ByteBuffer ERROR_HEAD = encoded("ERROR\n" +
+                                                         "message:");
+    private static final ByteBuffer FRAME_END = encoded("\n" +
+                                                        "\u0000");
+
     private int connectionId;
     private Connections<String> connections;
-    private boolean shouldTerminate = false;
+    // נקרא גם מת'רד ה-I/O אחרי שליחת הפריים האחרון
+    private volatile boolean shouldTerminate = false;
     private boolean isLoggedIn = false;
-    private DatabaseService db = new DatabaseService();
+    private final DatabaseService db = DatabaseService.getInstance();
     private String currentUsername = null; // כדי שנזכור מי המשתמש המחובר לצורך Logout/Report
 
     
@@ -31,33 +51,33 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     public void process(String message) {
         // שימוש במחלקת העזר Frame לפירוק ההודעה
         Frame frame = new Frame(message);
-        String command = frame.getCommand();
+        StompCommand command = frame.getType();
 
         // --- בדיקת אבטחה 1: חסימת פולשים ---
         // אם המשתמש לא מחובר, הוא רשאי לשלוח אך ורק פקודת CONNECT
-        if (!isLoggedIn && !command.equals("CONNECT")) {
+        if (!isLoggedIn && command != StompCommand.CONNECT) {
             sendError("Not connected", "You must log in first using the CONNECT command.");
             return;
         }
 
         switch (command) {
-            case "CONNECT":
+            case CONNECT:
                 handleConnect(frame);
                 break;
-            case "SUBSCRIBE":
+            case SUBSCRIBE:
                 handleSubscribe(frame);
                 break;
-            case "UNSUBSCRIBE":
+            case UNSUBSCRIBE:
                 handleUnsubscribe(frame);
                 break;
-            case "SEND":
+            case SEND:
                 handleSend(frame);
                 break;
-            case "DISCONNECT":
+            case DISCONNECT:
                 handleDisconnect(frame);
                 break;
             default:
-                sendError("Unknown Command", "The command " + command + " is not recognized");
+                sendError("Unknown Command", "The command " + frame.getCommand() + " is not recognized");
         }
     }
 
@@ -66,6 +86,13 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         return shouldTerminate;
     }
 
+    @Override
+    public void onClose() {
+        // הלקוח נותק בלי DISCONNECT - משחררים את המשתמש כדי שיוכל להתחבר שוב
+        Database.getInstance().logout(connectionId);
+        connections.disconnect(connectionId);
+    }
+
     // --- פונקציות הטיפול (Handlers) ---
 
     private void handleConnect(Frame frame) {
@@ -86,42 +113,30 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
 
         if (login != null && passcode != null) {
-            // --- התחלת שינוי SQL ---
-            
-            // 1. שולחים שאילתה לפייתון: "מה הסיסמה של המשתמש הזה?"
-            String passwordFromDb = db.execute("SELECT password FROM Users WHERE username='" + login + "'");
-
-            // לפי דרישות המטלה: אם המשתמש לא קיים (חזר ריק), רושמים אותו אוטומטית
-            if (passwordFromDb == null || passwordFromDb.trim().isEmpty() || passwordFromDb.startsWith("Error")) {
-                db.execute("INSERT INTO Users (username, password) VALUES ('" + login + "', '" + passcode + "')");
-                passwordFromDb = passcode; // מתייחסים לזה כאילו הסיסמה נכונה (כי הוא הרגע נרשם)
-            }
-
-            // 2. בודקים אם הסיסמה תואמת
-            if (passwordFromDb.trim().equals(passcode)) {
-                isLoggedIn = true;
-                currentUsername = login; // שומרים את השם בצד לשימוש מאוחר יותר
-
-                // 3. מתעדים את הכניסה בטבלת ההיסטוריה
-                db.execute("INSERT INTO Login_History (username, login_time) VALUES ('" + login + "', datetime('now'))");
-
-                
-                String response = "CONNECTED\n" +
-                                "version:1.2\n" +
-                                "\n" +
-                                "\u0000";
-                connections.send(connectionId, response);
-            } else {
-                // סיסמה שגויה
-                sendError("Login Failed", "Wrong password");
+            // האימות נעשה מול המשתמשים שבזיכרון; משתמש לא מוכר נרשם אוטומטית
+            LoginStatus status = Database.getInstance().login(connectionId, login, passcode);
+            switch (status) {
+                case ADDED_NEW_USER:
+                case LOGGED_IN_SUCCESSFULLY:
+                    isLoggedIn = true;
+                    currentUsername = login; // שומרים את השם בצד לשימוש מאוחר יותר
+
+                    ((ConnectionsImpl<String>) connections).sendEncoded(connectionId, CONNECTED);
+                    break;
+                case ALREADY_LOGGED_IN:
+                    sendError("Login Failed", "User already logged in");
+                    break;
+                case CLIENT_ALREADY_CONNECTED:
+                    sendError("Already Connected", "The client is already logged in, log out before trying again");
+                    break;
+                default:
+                    // סיסמה שגויה
+                    sendError("Login Failed", "Wrong password");
             }
-    // --- סוף שינוי SQL ---
-    } else {
-        sendError("Authentication Failed", "Missing login or passcode header.");
+        } else {
+            sendError("Authentication Failed", "Missing login or passcode header.");
         }
     }
-    
-    
 
     private void handleSubscribe(Frame frame) {
         String destination = frame.getHeader("destination");
@@ -138,11 +153,35 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
+        // היסטוריה: replay-last:<N> - N ההודעות האחרונות, replay-from:<message-id> - כל מה שאחריו
+        String replayFrom = frame.getHeader("replay-from");
+        String replayLast = frame.getHeader("replay-last");
+        long replayAfterId = -1;
+        int replayCount = 0;
+        try {
+            if (replayFrom != null) {
+                replayAfterId = Long.parseLong(replayFrom.trim());
+                replayCount = Integer.MAX_VALUE;
+            }
+            if (replayLast != null) {
+                replayCount = Integer.parseInt(replayLast.trim());
+            }
+        } catch (NumberFormatException e) {
+            replayCount = -1;
+        }
+        if (replayCount < 0) {
+            sendError("Malformed Frame", "replay-from must be a message-id and replay-last a non-negative number.");
+            return;
+        }
+
         // 1. שמירה במפה המקומית
         subscriberIdToChannel.put(id, destination);
 
         // 2. שמירה ב-Connections (דורש Casting לפי ההנחיות)
-        ((ConnectionsImpl<String>) connections).subscribeToChannel(destination, connectionId);
+        // הכותרת subscription:<id> של המנוי מקודדת פעם אחת כאן, ולא בכל הודעה
+        ByteBuffer subscriptionHeader = ByteBuffer.wrap(("subscription:" + id + "\n").getBytes(StandardCharsets.UTF_8));
+        ((ConnectionsImpl<String>) connections).subscribeToChannel(destination, connectionId, id, subscriptionHeader,
+                replayAfterId, replayCount);
 
         // 3. שליחת אישור אם נדרש
         sendReceiptIfNeeded(frame);
@@ -161,7 +200,7 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
         if (channel != null) {
             // רק אם המנוי היה קיים - מסירים מה-Connections
-            ((ConnectionsImpl<String>) connections).unsubscribeFromChannel(channel, connectionId);
+            ((ConnectionsImpl<String>) connections).unsubscribeFromChannel(channel, connectionId, id);
             sendReceiptIfNeeded(frame);
         } else {
             sendError("Subscription Error", "No subscription found with id: " + id);
@@ -181,41 +220,59 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         // נבדוק אם הלקוח שלח header בשם 'file-name'. אם כן, סימן שזה דיווח על קובץ
         String fileName = frame.getHeader("file-name");
         if (fileName != null && currentUsername != null) {
-            // שליחת פקודת INSERT לשרת הפייתון כדי לשמור את שם הקובץ והמשתמש
-            db.execute("INSERT INTO Uploaded_Files (username, filename) VALUES ('" + currentUsername + "', '" + fileName + "')");
+            // רישום הקובץ נכנס לתור ונכתב ל-DB ברקע
+            db.trackFileUpload(currentUsername, fileName);
         }
         // -----------------------------
 
-        // יצירת הודעת MESSAGE שתשלח לכל המנויים בערוץ
-        String messageFrame = "MESSAGE\n" +
-                              "destination:" + destination + "\n" +
-                              "message-id:" + System.currentTimeMillis() + "\n" +
-                              "subscription:0\n" + // שדה חובה לפי הפרוטוקול, גם אם לא יודעים את ה-ID של המקבל
-                              "\n" +
-                              body + "\n" +
-                              "\u0000";
+        // יצירת הודעת MESSAGE שתשלח לכל המנויים בערוץ:
+        // head ו-body משותפים לכולם, ו-ConnectionsImpl מוסיף ביניהם את subscription:<id> של כל מנוי
+        // את ה-message-id נותן Connections (תחת הנעילה של הערוץ, כדי שההיסטוריה תהיה לפי הסדר), ורק אז נבנה ה-head
+        String headers = "MESSAGE\n" +
+                         "destination:" + destination + "\n";
+        String contentLength = "";
+        byte[] tail;
+        if (frame.getHeader("content-length") != null) {
+            // גוף באורך מוגדר (יכול להכיל \0) - מעבירים אותו כמו שהוא, עם content-length מעודכן
+            byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+            contentLength = "content-length:" + bodyBytes.length + "\n";
+            tail = new byte[bodyBytes.length + 2];
+            tail[0] = '\n';
+            System.arraycopy(bodyBytes, 0, tail, 1, bodyBytes.length);
+            tail[tail.length - 1] = '\u0000';
+        } else {
+            tail = ("\n" +
+                    body + "\n" +
+                    "\u0000").getBytes(StandardCharsets.UTF_8);
+        }
 
-        connections.send(destination, messageFrame);
+        String lengthHeader = contentLength;
+        ((ConnectionsImpl<String>) connections).send(destination,
+                messageId -> encoded(headers +
+                                     "message-id:" + messageId + "\n" +
+                                     lengthHeader),
+                ByteBuffer.wrap(tail));
         sendReceiptIfNeeded(frame);
     }
 
     private void handleDisconnect(Frame frame) {
         // --- 1. SQL: תיעוד יציאה ב-DB ---
-        if (currentUsername != null) {
-            // מעדכן את שעת היציאה (Logout Time) לרשומה האחרונה של המשתמש
-            db.execute("UPDATE Login_History SET logout_time=datetime('now') WHERE id = (SELECT MAX(id) FROM Login_History WHERE username='" + currentUsername + "')");
-        }
+        // מעדכן את שעת היציאה (Logout Time) לרשומה האחרונה של המשתמש
+        Database.getInstance().logout(connectionId);
 
         // --- 2. Logic: מחיקת המשתמש מכל רשימות התפוצה (Topics) ---
         // אנחנו עוברים על המפה המקומית שלנו שיודעת לאילו ערוצים המשתמש נרשם
-        for (String channel : subscriberIdToChannel.values()) {
+        for (Map.Entry<String, String> subscription : subscriberIdToChannel.entrySet()) {
             // מסירים אותו מרשימת התפוצה ב-Connections
-            ((ConnectionsImpl<String>) connections).unsubscribeFromChannel(channel, connectionId);
+            ((ConnectionsImpl<String>) connections).unsubscribeFromChannel(subscription.getValue(), connectionId,
+                    subscription.getKey());
         }
         // מנקים את המפה המקומית
         subscriberIdToChannel.clear();
 
         // --- 3. Protocol: סיום החיבור ---
+        // קודם מכניסים את ה-RECEIPT לתור ורק אז מסמנים סיום: ת'רד ה-I/O שרואה את הדגל עם תור ריק
+        // סוגר את החיבור, ואחרי decodeAndProcess הוא מתבקש לכתוב (ולסגור) בכל מקרה
         sendReceiptIfNeeded(frame);
         shouldTerminate = true;
         isLoggedIn = false;
@@ -223,29 +280,48 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         connections.disconnect(connectionId);
     }
 
+    @Override
+    public String overflowError() {
+        // הלקוח לא קורא מספיק מהר והתור היוצא שלו התמלא (ה-encoder מוסיף את ה-NUL)
+        return "ERROR\n" +
+               "message:slow consumer\n" +
+               "\n" +
+               "Too many frames are waiting to be sent to this client";
+    }
+
+    @Override
+    public String malformedError(String reason) {
+        // הלקוח שלח פריים שאי אפשר לפענח (למשל גדול מדי) - לא קוראים ממנו יותר
+        return "ERROR\n" +
+               "message:Malformed Frame\n" +
+               "\n" +
+               reason;
+    }
+
     // --- פונקציות עזר (Utils) ---
 
     private void sendReceiptIfNeeded(Frame frame) {
         String receiptId = frame.getHeader("receipt");
         if (receiptId != null) {
-            String receiptFrame = "RECEIPT\n" +
-                                  "receipt-id:" + receiptId + "\n" +
-                                  "\n" +
-                                  "\u0000";
-            connections.send(connectionId, receiptFrame);
+            // רק ה-receipt-id מקודד כאן, שאר הפריים קבוע
+            ((ConnectionsImpl<String>) connections).sendEncoded(connectionId,
+                    RECEIPT_HEAD, encoded(receiptId), RECEIPT_TAIL);
         }
     }
 
     private void sendError(String message, String description) {
-        String errorFrame = "ERROR\n" +
-                            "message:" + message + "\n" +
-                            "\n" +
-                            description + "\n" +
-                            "\u0000";
-        connections.send(connectionId, errorFrame);
-        
-        // שגיאה גוררת ניתוק מיידי
+        ((ConnectionsImpl<String>) connections).sendEncoded(connectionId,
+                ERROR_HEAD, encoded(message + "\n" +
+                                    "\n" +
+                                    description), FRAME_END);
+
+        // שגיאה גוררת ניתוק מיידי (מסמנים אחרי שה-ERROR בתור, כמו ב-DISCONNECT)
         shouldTerminate = true;
+
         connections.disconnect(connectionId);
     }
-}
\ No newline at end of file
+
+    private static ByteBuffer encoded(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,5 +1,6 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.srv.Server;
 
 public class StompServer {
@@ -7,7 +8,7 @@ public class StompServer {
     public static void main(String[] args) {
         // בדיקה שיש מספיק ארגומנטים (פורט וסוג שרת)
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <server_type(tpc/reactor)>");
+            System.out.println("Usage: StompServer <port> <server_type(tpc/tpc-virtual/reactor)> [reactor_io_loops]");
             return;
         }
 
@@ -15,6 +16,9 @@ public class StompServer {
         int port = Integer.parseInt(args[0]);
         String serverType = args[1];
 
+        // טעינת המשתמשים מה-DB לזיכרון לפני שהלקוחות הראשונים מתחברים
+        Database.getInstance();
+
         // בדיקה איזה שרת להפעיל לפי הקלט
         if (serverType.equals("tpc")) {
             Server.threadPerClient(
@@ -24,9 +28,21 @@ public class StompServer {
                     true                                    // שימוש בבנאי החדש (STOMP)
             ).serve();
 
+        } else if (serverType.equals("tpc-virtual")) {
+            // כמו tpc, אבל כל לקוח רץ על ת'רד וירטואלי (Java 21 ומעלה)
+            Server.threadPerClientVirtual(
+                    port,
+                    () -> new StompMessagingProtocolImpl(),
+                    () -> new StompEncoderDecoder(),
+                    true
+            ).serve();
+
         } else if (serverType.equals("reactor")) {
+            // ארגומנט שלישי אופציונלי: מספר לולאות ה-I/O (ברירת מחדל - סלקטור יחיד)
+            int ioLoops = args.length > 2 ? Integer.parseInt(args[2]) : 1;
             Server.reactor(
                     Runtime.getRuntime().availableProcessors(), // מספר הת'רדים
+                    ioLoops,
                     port,
                     () -> new StompMessagingProtocolImpl(),
                     () -> new StompEncoderDecoder(),
@@ -34,7 +50,7 @@ public class StompServer {
             ).serve();
 
         } else {
-            System.out.println("Unknown server type. Use 'tpc' or 'reactor'.");
+            System.out.println("Unknown server type. Use 'tpc', 'tpc-virtual' or 'reactor'.");
         }
     }
 }
\ No newline at end of file
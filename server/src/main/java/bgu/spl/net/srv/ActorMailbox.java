@@ -0,0 +1,17 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The pending tasks of one actor in the {@link ActorThreadPool}. Any thread may add tasks,
+ * while the scheduled flag guarantees that at most one pool thread runs them at a time,
+ * in the order they were submitted.
+ */
+public class ActorMailbox {
+
+    final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // true while a drain of this mailbox is queued in the pool or running
+    final AtomicBoolean scheduled = new AtomicBoolean(false);
+}
@@ -1,78 +1,67 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
+    // how many tasks of one actor a worker runs before handing the thread to other actors
+    private static final int DEFAULT_BATCH_SIZE = Integer.getInteger("actor.batch.size", 16);
+
     private final ExecutorService threads;
+    private final int batchSize;
 
     public ActorThreadPool(int threads) {
-        this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this(threads, DEFAULT_BATCH_SIZE);
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+    public ActorThreadPool(int threads, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
         }
+        this.threads = Executors.newFixedThreadPool(threads);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Queues the task in the actor's mailbox. Tasks of the same actor never run concurrently
+     * and run in submission order; submitting takes no lock.
+     */
+    public void submit(ActorMailbox mailbox, Runnable r) {
+        mailbox.tasks.add(r);
+        schedule(mailbox);
     }
 
     public void shutdown() {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
-
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
-
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
+    // only the thread that wins the flag hands the mailbox to the pool
+    private void schedule(ActorMailbox mailbox) {
+        if (!mailbox.tasks.isEmpty() && mailbox.scheduled.compareAndSet(false, true)) {
+            threads.execute(() -> drain(mailbox));
         }
-        return pendingRunnables;
     }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
-            try {
+    // runs up to batchSize pending tasks in this turn; the rest are re-scheduled behind other actors
+    private void drain(ActorMailbox mailbox) {
+        try {
+            for (int i = 0; i < batchSize; i++) {
+                Runnable r = mailbox.tasks.poll();
+                if (r == null) {
+                    break;
+                }
                 r.run();
-            } finally {
-                complete(act);
             }
-        });
+        } finally {
+            complete(mailbox);
+        }
     }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
-            }
-        }
+    private void complete(ActorMailbox mailbox) {
+        mailbox.scheduled.set(false);
+        // a task added after the poll above would otherwise wait for the next submit
+        schedule(mailbox);
     }
 
 }
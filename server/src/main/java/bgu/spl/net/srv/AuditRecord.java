@@ -0,0 +1,46 @@
+package bgu.spl.net.srv;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * One audit event (login, logout or file upload) waiting to be written by the {@link AuditWriter}.
+ * The event time is taken when the record is created, not when it is flushed.
+ */
+public final class AuditRecord {
+
+    // same format and zone as sqlite's datetime('now')
+    private static final DateTimeFormatter SQL_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    public enum Type { LOGIN, LOGOUT, FILE_UPLOAD }
+
+    private final Type type;
+    private final String username;
+    private final String fileName;
+    private final String time;
+
+    private AuditRecord(Type type, String username, String fileName) {
+        this.type = type;
+        this.username = username;
+        this.fileName = fileName;
+        this.time = LocalDateTime.now(ZoneOffset.UTC).format(SQL_TIME);
+    }
+
+    public static AuditRecord login(String username) {
+        return new AuditRecord(Type.LOGIN, username, null);
+    }
+
+    public static AuditRecord logout(String username) {
+        return new AuditRecord(Type.LOGOUT, username, null);
+    }
+
+    public static AuditRecord fileUpload(String username, String fileName) {
+        return new AuditRecord(Type.FILE_UPLOAD, username, fileName);
+    }
+
+    public Type getType() { return type; }
+    public String getUsername() { return username; }
+    public String getFileName() { return fileName; }
+    public String getTime() { return time; }
+}
@@ -0,0 +1,94 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind for audit records: callers enqueue and return immediately, a single background
+ * thread drains the queue and hands the records to the sink in batches of up to {@code batchSize}.
+ * The queue is bounded, so when the sink falls behind, {@link #submit} blocks (backpressure)
+ * instead of growing the heap. {@link #close} flushes everything that was already submitted.
+ */
+public class AuditWriter {
+
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockingQueue<AuditRecord> queue;
+    private final int batchSize;
+    private final Consumer<List<AuditRecord>> sink;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    public AuditWriter(int capacity, int batchSize, Consumer<List<AuditRecord>> sink) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.sink = sink;
+        this.writerThread = new Thread(this::drainLoop, "audit-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public void submit(AuditRecord record) {
+        if (!running) {
+            // after shutdown there is no writer thread left, so write it ourselves
+            List<AuditRecord> single = new ArrayList<>(1);
+            single.add(record);
+            flush(single);
+            return;
+        }
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops accepting background work and blocks until every queued record was written.
+     */
+    public void close() {
+        running = false;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // records that raced with the shutdown flag
+        List<AuditRecord> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            flush(rest);
+        }
+    }
+
+    private void drainLoop() {
+        List<AuditRecord> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                AuditRecord first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                flush(batch);
+            } catch (InterruptedException e) {
+                // keep draining until close() asks us to stop
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<AuditRecord> batch) {
+        try {
+            sink.accept(batch);
+        } catch (RuntimeException e) {
+            System.err.println("Audit write of " + batch.size() + " records failed: " + e.getMessage());
+        }
+    }
+}
@@ -47,7 +47,7 @@ public abstract class BaseServer<T> implements Server<T> {
         this.sock = null;
         
         // כאן יוצרים את המרכזייה המשותפת לכל הלקוחות
-        this.connections = new ConnectionsImpl<>(); 
+        this.connections = new ConnectionsImpl<>(encdecFactory.get()); 
     }
 
     @Override
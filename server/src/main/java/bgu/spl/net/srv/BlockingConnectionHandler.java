@@ -1,15 +1,28 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.MalformedMessageException;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import bgu.spl.net.api.StompMessagingProtocol;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int BUFFER_SIZE = 1 << 13; //8k
+    private static final int MAX_WRITE_BYTES = Integer.getInteger("stomp.write.max.bytes", 1 << 16);
+    private static final int MAX_WRITE_BUFFERS = 64;
+    // כמה זמן ת'רד הכתיבה מחכה להודעה לפני שהוא מסתיים; השליחה הבאה מפעילה אותו מחדש
+    private static final long WRITER_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("stomp.writer.idle.ms", 1000));
+
     private final MessagingProtocol<T> protocol;
     private final StompMessagingProtocol<T> stompProtocol;
     private final MessageEncoderDecoder<T> encdec;
@@ -17,6 +30,14 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     private BufferedInputStream in;
     private BufferedOutputStream out;
     private volatile boolean connected = true;
+    // הודעות שמחכות לת'רד הכתיבה של החיבור, כך שמי ששולח (למשל broadcast) אף פעם לא נחסם על הסוקט
+    private final OutboundQueue outbound = new OutboundQueue();
+    // איפה מריצים את ת'רד הכתיבה (ברירת מחדל: ת'רד חדש). הוא רץ רק כשיש מה לכתוב, כך שללקוח
+    // שקט יש רק ת'רד הקריאה שלו
+    private Executor writerExecutor = writer -> new Thread(writer).start();
+    private final AtomicBoolean writerRunning = new AtomicBoolean(false);
+    // להעתקת באפרים ישירים (למשל מיומן ערוץ ממופה) לסוקט; של ת'רד הכתיבה, נוצר בפעם הראשונה
+    private byte[] scratch;
 
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol) {
         this.sock = sock;
@@ -32,35 +53,133 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
         this.stompProtocol = stompProtocol;
     }
 
+    /*package*/ void setWriterExecutor(Executor writerExecutor) {
+        this.writerExecutor = writerExecutor;
+    }
+
     @Override
     public void run() {
-        try (Socket sock = this.sock) { //just for automatic closing
+        try {
             int read;
+            byte[] chunk = new byte[BUFFER_SIZE];
 
             in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
-
-            while (!shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    if (stompProtocol != null) {
-                        // --- לוגיקה עבור STOMP ---
-                        stompProtocol.process(nextMessage);
-                    } else if (protocol != null) {
-                        T response = protocol.process(nextMessage);
-                        if (response != null) {
-                            out.write(encdec.encode(response));
-                            out.flush();
-                        }
+
+            // קוראים כמה שיש ומפענחים את כל הפריימים שבחתיכה בבת אחת
+            while (!shouldTerminate() && connected && (read = in.read(chunk)) >= 0) {
+                encdec.decode(ByteBuffer.wrap(chunk, 0, read), this::handleMessage);
+            }
+
+        } catch (MalformedMessageException ex) {
+            // קלט שאי אפשר לפענח: מפסיקים לקרוא, ות'רד הכתיבה שולח ERROR (אם הפרוטוקול מגדיר) וסוגר
+            T error = stompProtocol != null ? stompProtocol.malformedError(ex.getMessage()) : null;
+            send(error);
+        } catch (IOException ex) {
+            // סוקט שת'רד הכתיבה כבר סגר הוא לא שגיאה
+            if (connected) ex.printStackTrace();
+        } finally {
+            // ת'רד הכתיבה שולח את מה שנשאר בתור (למשל ה-RECEIPT של DISCONNECT) וסוגר את הסוקט
+            outbound.finish();
+            startWriter();
+            if (stompProtocol != null) stompProtocol.onClose();
+        }
+    }
+
+    private void startWriter() {
+        if (writerRunning.compareAndSet(false, true)) {
+            try {
+                writerExecutor.execute(this::writeLoop);
+            } catch (RejectedExecutionException ex) {
+                closeSocket(); // השרת נסגר
+            }
+        }
+    }
+
+    // ת'רד הכתיבה: מרוקן את התור לסוקט, כמה הודעות בכל flush, ומסתיים כשאין מה לכתוב
+    private void writeLoop() {
+        ByteBuffer[] gather = new ByteBuffer[MAX_WRITE_BUFFERS];
+        boolean idle = false;
+        try {
+            if (out == null) {
+                out = new BufferedOutputStream(sock.getOutputStream());
+            }
+            while (true) {
+                if (!outbound.awaitFrames(WRITER_IDLE_NANOS)) {
+                    if (outbound.isClosing()) {
+                        return;
+                    }
+                    writerRunning.set(false);
+                    // הודעה שנכנסה אחרי ההמתנה ראתה שהכותב עוד רץ ולא הפעילה חדש
+                    if ((outbound.isEmpty() && !outbound.isClosing()) || !writerRunning.compareAndSet(false, true)) {
+                        idle = true;
+                        return;
                     }
+                    continue;
                 }
+                int count = outbound.gather(gather, MAX_WRITE_BYTES);
+                try {
+                    for (int i = 0; i < count; i++) {
+                        write(gather[i]);
+                    }
+                } finally {
+                    Arrays.fill(gather, 0, count, null);
+                }
+                out.flush();
+                outbound.removeWritten();
             }
+        } catch (IOException ex) {
+            if (connected) ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!idle) {
+                closeSocket();
+                outbound.reportDrops(sock.getRemoteSocketAddress());
+            }
+        }
+    }
+
+    private void write(ByteBuffer part) throws IOException {
+        if (part.hasArray()) {
+            out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+            part.position(part.limit());
+            return;
+        }
+        if (scratch == null) {
+            scratch = new byte[BUFFER_SIZE];
+        }
+        while (part.hasRemaining()) {
+            int length = Math.min(part.remaining(), scratch.length);
+            part.get(scratch, 0, length);
+            out.write(scratch, 0, length);
+        }
+    }
 
+    private void closeSocket() {
+        connected = false;
+        try {
+            sock.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
 
+    private void handleMessage(T nextMessage) {
+        // פריימים שהגיעו אחרי DISCONNECT באותה חתיכה לא מטופלים
+        if (shouldTerminate() || !connected) {
+            return;
+        }
+        if (stompProtocol != null) {
+            // --- לוגיקה עבור STOMP ---
+            stompProtocol.process(nextMessage);
+        } else if (protocol != null) {
+            T response = protocol.process(nextMessage);
+            if (response != null) {
+                send(response);
+            }
+        }
+    }
+
     private boolean shouldTerminate() {
         if (stompProtocol != null) return stompProtocol.shouldTerminate();
         else if (protocol != null) return protocol.shouldTerminate();
@@ -70,22 +189,54 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     @Override
     public void close() throws IOException {
         connected = false;
+        outbound.finish();
         sock.close();
     }
     @Override
-    public synchronized void send(T msg) {   
+    public void send(T msg) {   
         if (msg != null) {
-            try {
-                byte[] encodedMsg = encdec.encode(msg);
-                out.write(encodedMsg);                
-                out.flush();
-            } catch (IOException e) {
-                // במקרה של שגיאת תקשורת, נדפיס את השגיאה
-                e.printStackTrace();
-            }
+            enqueue(new ByteBuffer[]{ByteBuffer.wrap(encdec.encode(msg))});
+        }
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer... parts) {
+        // כל נמען מקבל view משלו על אותם בתים
+        ByteBuffer[] frame = new ByteBuffer[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            frame[i] = parts[i].duplicate();
         }
+        enqueue(frame);
+    }
+
+    @Override
+    public void sendStream(FrameSource source) {
+        // ת'רד הכתיבה מושך מה-source לפי הקצב של הסוקט
+        enqueued(outbound.offer(source));
+    }
 
+    private void enqueue(ByteBuffer[] frame) {
+        enqueued(outbound.offer(frame));
     }
+
+    private void enqueued(boolean accepted) {
+        if (!accepted) {
+            // לקוח איטי שהתור שלו התמלא: ת'רד הכתיבה כמעט בטוח תקוע ב-write לסוקט מלא, כך ש-ERROR לא יגיע
+            // אליו ממילא. סוגרים את הסוקט מיד, כדי ששני הת'רדים של החיבור ישתחררו ולא רק כשה-TCP יוותר
+            outbound.abort(null);
+            closeSocket();
+        } else {
+            startWriter();
+        }
+    }
+
+    /**
+     * @return how many frames to this client were dropped because its outbound queue was full
+     */
+    public long droppedFrames() {
+        return outbound.droppedFrames();
+    }
+
     public StompMessagingProtocol<T> getProtocol() {
         return stompProtocol;
     }
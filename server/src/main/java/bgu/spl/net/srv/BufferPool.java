@@ -0,0 +1,167 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct ByteBuffers in power-of-two size classes from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}. Released buffers go first to a small cache of the releasing thread and
+ * then to a shared queue per class; the off-heap memory kept in the pool is capped, anything
+ * beyond the cap is left to the garbage collector.
+ *
+ * Only threads that lease have a cache: a buffer released by a thread that never leases (e.g. an
+ * actor worker releasing a read buffer the selector thread leased) goes straight to the shared
+ * queue, where the leasing threads find it, instead of being stranded in a cache nobody polls.
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE = 1 << 9;  //512b
+    public static final int MAX_SIZE = 1 << 16; //64k
+    private static final int MIN_SHIFT = 9;
+    private static final int CLASSES = 16 - MIN_SHIFT + 1;
+
+    private static final BufferPool SHARED = new BufferPool(
+            Long.getLong("buffer.pool.max.bytes", 32L << 20),
+            Integer.getInteger("buffer.pool.thread.cache", 8));
+
+    private final long maxPooledBytes;
+    private final int threadCacheSize;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] shared;
+    // נוצר רק בת'רד שקורא ל-lease
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> caches = new ThreadLocal<>();
+
+    // סטטיסטיקות
+    private final AtomicLong leasedBuffers = new AtomicLong();
+    private final AtomicLong leasedBytes = new AtomicLong();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong threadCachedBytes = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maxPooledBytes, int threadCacheSize) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.threadCacheSize = threadCacheSize;
+        this.shared = new ConcurrentLinkedQueue[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * @return the pool shared by the whole server
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return a cleared direct buffer of at least size bytes (rounded up to its size class).
+     *         Buffers larger than MAX_SIZE are allocated for the caller and never pooled.
+     */
+    public ByteBuffer lease(int size) {
+        int sizeClass = classOf(size);
+        ByteBuffer buff = null;
+        if (sizeClass >= 0) {
+            buff = leasingCache()[sizeClass].poll();
+            if (buff != null) {
+                threadCachedBytes.addAndGet(-buff.capacity());
+            } else {
+                buff = shared[sizeClass].poll();
+            }
+        }
+        if (buff != null) {
+            pooledBytes.addAndGet(-buff.capacity());
+            buff.clear();
+        } else {
+            buff = ByteBuffer.allocateDirect(sizeClass >= 0 ? MIN_SIZE << sizeClass : size);
+            allocatedBytes.addAndGet(buff.capacity());
+        }
+        leasedBuffers.incrementAndGet();
+        leasedBytes.addAndGet(buff.capacity());
+        return buff;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #lease}. The caller must not use it afterwards.
+     */
+    public void release(ByteBuffer buff) {
+        int capacity = buff.capacity();
+        leasedBuffers.decrementAndGet();
+        leasedBytes.addAndGet(-capacity);
+
+        int sizeClass = classOf(capacity);
+        if (sizeClass < 0 || (MIN_SIZE << sizeClass) != capacity || !buff.isDirect()) {
+            return;
+        }
+        // מעל התקרה - לא שומרים, ה-GC ישחרר את הזיכרון
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        ArrayDeque<ByteBuffer>[] cache = caches.get();
+        if (cache != null && cache[sizeClass].size() < threadCacheSize) {
+            cache[sizeClass].push(buff);
+            threadCachedBytes.addAndGet(capacity);
+        } else {
+            shared[sizeClass].add(buff);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private ArrayDeque<ByteBuffer>[] leasingCache() {
+        ArrayDeque<ByteBuffer>[] cache = caches.get();
+        if (cache == null) {
+            cache = new ArrayDeque[CLASSES];
+            for (int i = 0; i < CLASSES; i++) {
+                cache[i] = new ArrayDeque<>(threadCacheSize);
+            }
+            caches.set(cache);
+        }
+        return cache;
+    }
+
+    /** @return how many buffers are currently leased */
+    public long leasedBuffers() {
+        return leasedBuffers.get();
+    }
+
+    /** @return the capacity of the buffers currently leased */
+    public long leasedBytes() {
+        return leasedBytes.get();
+    }
+
+    /** @return the capacity of the buffers kept in the pool (shared queues and thread caches) */
+    public long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /** @return the part of {@link #pooledBytes} kept in the caches of the leasing threads */
+    public long threadCachedBytes() {
+        return threadCachedBytes.get();
+    }
+
+    /** @return the direct memory allocated by this pool since it was created */
+    public long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{leased=" + leasedBuffers() + " (" + leasedBytes() + " bytes)"
+                + ", pooled=" + pooledBytes() + " bytes (" + threadCachedBytes() + " in thread caches)"
+                + ", allocated=" + allocatedBytes() + " bytes}";
+    }
+
+    // מחלקת הגודל הקטנה ביותר שמכילה size, או -1 אם הוא גדול מ-MAX_SIZE
+    private static int classOf(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,100 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The latest messages sent to one channel, kept encoded (the shared head and body of each frame)
+ * so they can be replayed to a new subscriber without encoding them again. The oldest messages
+ * are dropped once the channel holds more than maxMessages messages or maxBytes bytes.
+ *
+ * {@link ConnectionsImpl} publishes and subscribes while holding the channel's lock, so a
+ * subscriber gets every message exactly once: either from the replay or live. Every method but
+ * {@link #lastUsed} must be called holding that lock.
+ */
+class ChannelHistory {
+
+    static final class Message {
+        final long id;
+        final ByteBuffer head;
+        final ByteBuffer body;
+
+        Message(long id, ByteBuffer head, ByteBuffer body) {
+            this.id = id;
+            this.head = head;
+            this.body = body;
+        }
+
+        int size() {
+            return head.remaining() + body.remaining();
+        }
+    }
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final ArrayDeque<Message> messages = new ArrayDeque<>();
+    private long bytes;
+    // לבחירת הערוץ שלא היה בשימוש הכי הרבה זמן
+    private volatile long lastUsed = System.nanoTime();
+
+    ChannelHistory(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Appends a message, dropping the oldest ones beyond the limits.
+     * @return how much the retained bytes grew (negative if they shrank)
+     */
+    long append(long id, ByteBuffer head, ByteBuffer body) {
+        lastUsed = System.nanoTime();
+        Message message = new Message(id, head, body);
+        long before = bytes;
+        messages.addLast(message);
+        bytes += message.size();
+        while (!messages.isEmpty() && (messages.size() > maxMessages || bytes > maxBytes)) {
+            bytes -= messages.removeFirst().size();
+        }
+        return bytes - before;
+    }
+
+    /**
+     * @param afterId only messages with a larger id (-1 for all of them)
+     * @param last at most this many of the newest of those messages
+     * @return the selected messages, oldest first
+     */
+    List<Message> select(long afterId, int last) {
+        lastUsed = System.nanoTime();
+        List<Message> selected = new ArrayList<>(Math.min(last, messages.size()));
+        Iterator<Message> newestFirst = messages.descendingIterator();
+        while (selected.size() < last && newestFirst.hasNext()) {
+            Message message = newestFirst.next();
+            // המזהים נכנסים לפי הסדר (ניתנים תחת הנעילה), אז מהראשון הישן כל השאר ישנים
+            if (message.id <= afterId) {
+                break;
+            }
+            selected.add(message);
+        }
+        Collections.reverse(selected);
+        return selected;
+    }
+
+    /**
+     * Drops every message, once the history was removed from {@link ConnectionsImpl}.
+     * @return the bytes released
+     */
+    long evict() {
+        long released = bytes;
+        messages.clear();
+        bytes = 0;
+        return released;
+    }
+
+    long lastUsed() {
+        return lastUsed;
+    }
+}
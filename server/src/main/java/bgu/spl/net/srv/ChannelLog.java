@@ -0,0 +1,434 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The durable log of one channel: its MESSAGE frames (the shared head and body), appended in the
+ * order they were sent to segment files in the channel's directory. The segment being written is
+ * mapped into memory and written through the mapping. When a frame does not fit, a new segment is
+ * started, named after the id of its first message (or a lower bound of it), and the oldest
+ * segments are deleted while the log is over its size limit or their newest frame is older than
+ * the age limit. {@link #expire} applies the age limit to the segment being written too.
+ *
+ * A record is a u32 length (of the rest of the record), the u64 message id, a u32 head length,
+ * the head and the body. The length is written last, so a record cut short by a crash reads as
+ * the end of the segment. Each segment has a sparse index in memory, one message id and position
+ * every {@link #INDEX_INTERVAL} bytes, built when the segment is first read. A closed segment is
+ * only mapped while a replay is being set up; the replay's views keep the mapping alive until it
+ * is done, then the garbage collector unmaps it.
+ */
+class ChannelLog {
+
+    private static final int RECORD_HEADER = 4 + 8 + 4;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final String SUFFIX = ".log";
+
+    private static final class Segment {
+        final Path path;
+        // ה-id של ההודעה הראשונה בקובץ (שם הקובץ)
+        final long baseId;
+        // null עד הקריאה הראשונה של קובץ סגור
+        MappedByteBuffer map;
+        // סוף הרשומה השלמה האחרונה; -1 עד שהקובץ נסרק
+        int end = -1;
+        int records;
+        long maxId;
+        long capacity;
+        // מתי נכתבה לקובץ ההודעה האחרונה (למחיקה לפי גיל)
+        long writtenAt;
+        // האינדקס הדליל: id ומיקום של רשומה כל INDEX_INTERVAL בתים
+        long[] indexIds = new long[16];
+        int[] indexPositions = new int[16];
+        int indexSize;
+
+        Segment(Path path, long baseId) {
+            this.path = path;
+            this.baseId = baseId;
+        }
+
+        void added(long id, int position, int length) {
+            if (indexSize == 0 || position - indexPositions[indexSize - 1] >= INDEX_INTERVAL) {
+                if (indexSize == indexIds.length) {
+                    indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+                }
+                indexIds[indexSize] = id;
+                indexPositions[indexSize] = position;
+                indexSize++;
+            }
+            records++;
+            maxId = Math.max(maxId, id);
+            end = position + 4 + length;
+        }
+
+        // המיקום של הרשומה האחרונה באינדקס עם id שלא גדול מ-id (0 אם אין כזאת)
+        int floor(long id) {
+            int low = 0;
+            int high = indexSize - 1;
+            int position = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexIds[mid] <= id) {
+                    position = indexPositions[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return position;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final boolean fsync;
+    // לפי baseId; האחרון הוא הקובץ שנכתב עכשיו
+    private final List<Segment> segments = new ArrayList<>();
+    private long lastId;
+
+    /**
+     * Opens the log in dir (creating it if needed): the last segment is mapped for appending
+     * after its last complete record, the others are only mapped when a replay reads them.
+     * @param segmentBytes the size of a new segment (a larger frame gets a segment of its own size)
+     * @param retentionBytes the total size of the segments kept, besides the one being written
+     * @param retentionMillis how long a segment is kept after its newest frame was written
+     * @param fsync force every append to disk, not only to the OS
+     */
+    ChannelLog(Path dir, int segmentBytes, long retentionBytes, long retentionMillis, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsync = fsync;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    Segment segment = new Segment(file, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    segment.capacity = Files.size(file);
+                    segment.writtenAt = Files.getLastModifiedTime(file).toMillis();
+                    segments.add(segment);
+                } catch (NumberFormatException ex) {
+                    System.err.println("Ignoring " + file + ": not a log segment");
+                }
+            }
+        }
+        segments.sort((a, b) -> Long.compare(a.baseId, b.baseId));
+        if (!segments.isEmpty()) {
+            Segment active = active();
+            mapForAppend(active, Math.max(active.capacity, segmentBytes));
+            scan(active);
+            for (Segment segment : segments) {
+                lastId = Math.max(lastId, segment.baseId);
+            }
+            lastId = Math.max(lastId, active.maxId);
+            applyRetention();
+        }
+    }
+
+    /**
+     * @return the largest message id in the log (0 if it is empty)
+     */
+    synchronized long lastId() {
+        return lastId;
+    }
+
+    /**
+     * Reads only the last segment of the log in dir, without opening the log.
+     * @return the largest message id in it (0 if there is no log)
+     */
+    static long lastIdIn(Path dir) throws IOException {
+        Segment last = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long baseId = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                    if (last == null || baseId > last.baseId) {
+                        last = new Segment(file, baseId);
+                    }
+                } catch (NumberFormatException ex) {
+                    // לא קובץ של היומן; הבנאי מדווח עליו
+                }
+            }
+        }
+        return last == null ? 0 : Math.max(last.baseId, scanned(last).maxId);
+    }
+
+    /**
+     * Applies the retention limits now. Once the newest frame of the segment being written is older
+     * than the age limit, the log first rolls to a new empty segment, so that segment is deleted too.
+     */
+    synchronized void expire() throws IOException {
+        if (segments.isEmpty()) {
+            return;
+        }
+        Segment active = active();
+        long now = System.currentTimeMillis();
+        if (now - active.writtenAt <= retentionMillis) {
+            applyRetention();
+        } else if (active.end > 0) {
+            // הקובץ החדש נקרא על שם lastId + 1, כך שגם אחרי הפעלה מחדש ה-id ממשיכים ממנו
+            roll(lastId + 1, 0);
+        } else {
+            // קובץ ריק וישן: מסמנים אותו כחדש, כדי שבדיקת הגיל של יומן סגור לא תפתח אותו שוב לחינם
+            active.writtenAt = now;
+            Files.setLastModifiedTime(active.path, FileTime.fromMillis(now));
+            applyRetention();
+        }
+    }
+
+    /**
+     * @return whether some segment in dir was last written longer ago than retentionMillis,
+     *         judged by the files' modification times
+     */
+    static boolean hasExpired(Path dir, long retentionMillis) throws IOException {
+        long oldest = System.currentTimeMillis() - retentionMillis;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toMillis() < oldest) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the log's mappings (replays that are still running keep theirs). The log can not be
+     * used afterwards.
+     */
+    synchronized void close() {
+        for (Segment segment : segments) {
+            segment.map = null;
+        }
+        segments.clear();
+    }
+
+    /**
+     * Appends one frame, starting a new segment if it does not fit in the current one.
+     */
+    synchronized void append(long id, ByteBuffer head, ByteBuffer body) throws IOException {
+        int length = 8 + 4 + head.remaining() + body.remaining();
+        long now = System.currentTimeMillis();
+        Segment active = segments.isEmpty() ? null : active();
+        if (active == null || active.end + 4 + length > active.map.capacity()) {
+            active = roll(id, 4 + length);
+        } else if (segments.size() > 1 && now - segments.get(0).writtenAt > retentionMillis) {
+            applyRetention();
+        }
+        active.writtenAt = now;
+        MappedByteBuffer map = active.map;
+        int position = active.end;
+        map.putLong(position + 4, id);
+        map.putInt(position + 12, head.remaining());
+        ByteBuffer record = map.duplicate();
+        record.position(position + RECORD_HEADER);
+        record.put(head.duplicate());
+        record.put(body.duplicate());
+        // האורך נכתב אחרון: רשומה בלי אורך היא סוף הקובץ
+        map.putInt(position, length);
+        if (fsync) {
+            map.force();
+        }
+        active.added(id, position, length);
+        lastId = Math.max(lastId, id);
+    }
+
+    /**
+     * The frames of the log with an id above afterId, at most the newest last of them, oldest
+     * first. The source reads the log as it is now: frames appended later are not part of it.
+     * Every frame is built as head + subscriberHeader + body, where head and body are read-only
+     * views of the mapped segments, so nothing is copied into the heap.
+     */
+    synchronized FrameSource replay(long afterId, int last, ByteBuffer subscriberHeader) throws IOException {
+        if (segments.isEmpty()) {
+            return () -> null;
+        }
+        // נקודת ההתחלה לפי ה-id, ואחר כך לפי מספר ההודעות - המאוחרת מבין השתיים
+        int startSegment = 0;
+        int startPosition = 0;
+        if (afterId >= 0) {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                if (segments.get(i).baseId <= afterId) {
+                    startSegment = i;
+                    startPosition = scanned(segments.get(i)).floor(afterId);
+                    break;
+                }
+            }
+        }
+        if (last < Integer.MAX_VALUE) {
+            long remaining = last;
+            for (int i = segments.size() - 1; i >= 0 && i >= startSegment; i--) {
+                Segment segment = scanned(segments.get(i));
+                if (segment.records >= remaining) {
+                    int position = skip(segment, (int) (segment.records - remaining));
+                    if (i > startSegment || position > startPosition) {
+                        startSegment = i;
+                        startPosition = position;
+                    }
+                    break;
+                }
+                remaining -= segment.records;
+            }
+        }
+
+        // views על הקבצים כפי שהם עכשיו; הם נשארים תקינים גם אם הקובץ נמחק בינתיים
+        ByteBuffer[] views = new ByteBuffer[segments.size() - startSegment];
+        for (int i = 0; i < views.length; i++) {
+            Segment segment = scanned(segments.get(startSegment + i));
+            ByteBuffer view = segment.map.asReadOnlyBuffer();
+            view.limit(segment.end);
+            views[i] = view;
+        }
+        // הקבצים הסגורים לא נשארים ממופים (האינדקס שלהם נשאר); ה-views מחזיקים את המיפוי עד סוף ה-replay
+        for (int i = 0; i < segments.size() - 1; i++) {
+            segments.get(i).map = null;
+        }
+        return new Replay(views, startPosition, afterId, last, subscriberHeader);
+    }
+
+    private static final class Replay implements FrameSource {
+        private final ByteBuffer[] views;
+        private final long afterId;
+        private final ByteBuffer subscriberHeader;
+        private int segment;
+        private int position;
+        private int left;
+
+        Replay(ByteBuffer[] views, int position, long afterId, int last, ByteBuffer subscriberHeader) {
+            this.views = views;
+            this.position = position;
+            this.afterId = afterId;
+            this.left = last;
+            this.subscriberHeader = subscriberHeader;
+        }
+
+        @Override
+        public ByteBuffer[] next() {
+            while (left > 0 && segment < views.length) {
+                ByteBuffer view = views[segment];
+                if (position >= view.limit()) {
+                    segment++;
+                    position = 0;
+                    continue;
+                }
+                int length = view.getInt(position);
+                long id = view.getLong(position + 4);
+                int headStart = position + RECORD_HEADER;
+                int bodyStart = headStart + view.getInt(position + 12);
+                int end = position + 4 + length;
+                position = end;
+                // האינדקס הדליל מתחיל לפני afterId; ההודעות עד afterId מדולגות כאן
+                if (id > afterId) {
+                    left--;
+                    return new ByteBuffer[] {slice(view, headStart, bodyStart), subscriberHeader.duplicate(),
+                            slice(view, bodyStart, end)};
+                }
+            }
+            return null;
+        }
+
+        private static ByteBuffer slice(ByteBuffer view, int from, int to) {
+            ByteBuffer slice = view.duplicate();
+            slice.position(from);
+            slice.limit(to);
+            return slice;
+        }
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private Segment roll(long firstId, int needed) throws IOException {
+        if (!segments.isEmpty() && fsync) {
+            active().map.force();
+        }
+        Segment next = new Segment(dir.resolve(String.format("%020d%s", firstId, SUFFIX)), firstId);
+        mapForAppend(next, Math.max(segmentBytes, needed));
+        next.end = 0;
+        next.writtenAt = System.currentTimeMillis();
+        segments.add(next);
+        applyRetention();
+        return next;
+    }
+
+    // מוחקים את הקבצים הישנים (אף פעם לא את זה שנכתב עכשיו) עד שהיומן בגבולות הגודל והגיל
+    private void applyRetention() throws IOException {
+        long total = 0;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            total += segments.get(i).capacity;
+        }
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (total <= retentionBytes && now - oldest.writtenAt <= retentionMillis) {
+                break;
+            }
+            segments.remove(0);
+            total -= oldest.capacity;
+            // מיפוי קיים (replay שעוד רץ) נשאר תקין גם אחרי המחיקה
+            Files.deleteIfExists(oldest.path);
+        }
+    }
+
+    private static void mapForAppend(Segment segment, long capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            segment.capacity = capacity;
+        }
+    }
+
+    // ממפה קובץ סגור ובונה לו אינדקס, בפעם הראשונה שקוראים ממנו
+    private static Segment scanned(Segment segment) throws IOException {
+        if (segment.map == null) {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                segment.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        if (segment.end < 0) {
+            scan(segment);
+        }
+        return segment;
+    }
+
+    // עובר על הרשומות מתחילת הקובץ עד הרשומה השלמה האחרונה
+    private static void scan(Segment segment) {
+        ByteBuffer map = segment.map;
+        segment.end = 0;
+        int position = 0;
+        while (position + RECORD_HEADER <= map.capacity()) {
+            int length = map.getInt(position);
+            if (length < RECORD_HEADER - 4 || length > map.capacity() - position - 4
+                    || map.getInt(position + 12) > length - (RECORD_HEADER - 4)) {
+                break;
+            }
+            segment.added(map.getLong(position + 4), position, length);
+            position = segment.end;
+        }
+    }
+
+    private static int skip(Segment segment, int records) {
+        int position = 0;
+        for (int i = 0; i < records; i++) {
+            position += 4 + segment.map.getInt(position);
+        }
+        return position;
+    }
+}
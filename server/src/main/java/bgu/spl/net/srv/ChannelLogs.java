@@ -0,0 +1,303 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The durable {@link ChannelLog}s of all channels, one directory per channel under a root
+ * directory. Enabled by setting the {@code stomp.log.dir} system property. At startup only the
+ * last segment of every log is read, to find the largest message id logged so ids can continue
+ * after it; a log is opened when its channel is first sent to or replayed, and at most
+ * {@code stomp.log.open.max} logs stay open: the least recently used ones that no thread is using
+ * are closed, dropping their mappings. Every {@code stomp.log.retention.check.ms} a background
+ * thread applies the retention limits to all logs (see {@link ChannelLog#expire}), so the frames
+ * of a channel nobody sends to anymore are deleted too; a closed log is only opened for that if
+ * one of its segment files is past the age limit.
+ */
+class ChannelLogs {
+
+    private static final String DIR = System.getProperty("stomp.log.dir");
+    private static final int SEGMENT_BYTES = Integer.getInteger("stomp.log.segment.bytes", 16 << 20);
+    private static final long RETENTION_BYTES = Long.getLong("stomp.log.retention.bytes", 256L << 20);
+    private static final long RETENTION_MILLIS = Long.getLong("stomp.log.retention.ms", TimeUnit.DAYS.toMillis(7));
+    private static final boolean FSYNC = Boolean.getBoolean("stomp.log.fsync");
+    private static final int MAX_OPEN = Integer.getInteger("stomp.log.open.max", 64);
+    // כל כמה זמן לאכוף את מגבלות השמירה על כל היומנים (0 = רק בזמן כתיבה)
+    private static final long RETENTION_CHECK_MILLIS = Long.getLong("stomp.log.retention.check.ms", TimeUnit.MINUTES.toMillis(1));
+
+    // יומן פתוח (או שנפתח עכשיו), עם מספר הת'רדים שמשתמשים בו כרגע (רק יומן שאף אחד לא משתמש בו נסגר).
+    // הרשומה נכנסת למפה לפני שהיומן נפתח, ומי שמבקש אותו בינתיים מחכה ל-future שלה ולא למנעול הכללי
+    private static final class Open {
+        final CompletableFuture<ChannelLog> log = new CompletableFuture<>();
+        int users = 1;
+
+        // היומן, אחרי שנפתח; null אם אין לו תיקייה
+        ChannelLog log() throws IOException {
+            try {
+                return log.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private final Path root;
+    // היומנים הפתוחים, מהפחות שימושי לאחרון שהיה בשימוש; מוגן ע"י this, שמוחזק רק לעדכון המפה
+    // (פתיחה, סריקה, אכיפת שמירה וסגירה של יומן נעשות מחוץ לו)
+    private final LinkedHashMap<String, Open> open = new LinkedHashMap<>(16, 0.75f, true);
+    private long lastId;
+
+    /**
+     * @return the logs configured by the system properties, or null if stomp.log.dir is not set
+     */
+    static ChannelLogs fromProperties() {
+        if (DIR == null || DIR.isEmpty()) {
+            return null;
+        }
+        try {
+            ChannelLogs logs = new ChannelLogs(Paths.get(DIR));
+            logs.startRetentionCheck();
+            return logs;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the channel logs in " + DIR, e);
+        }
+    }
+
+    ChannelLogs(Path root) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root,
+                dir -> Files.isDirectory(dir) && dir.getFileName().toString().startsWith("_"))) {
+            for (Path dir : dirs) {
+                lastId = Math.max(lastId, ChannelLog.lastIdIn(dir));
+            }
+        }
+    }
+
+    /**
+     * @return the largest message id found in the logs at startup
+     */
+    long lastId() {
+        return lastId;
+    }
+
+    /**
+     * Appends a frame to the channel's log (see {@link ChannelLog#append}), creating the log if needed.
+     * The caller must hold the channel's lock.
+     */
+    void append(String channel, long id, ByteBuffer head, ByteBuffer body) throws IOException {
+        Open entry = acquire(channel, true);
+        try {
+            entry.log().append(id, head, body);
+        } finally {
+            release(channel, entry, false);
+        }
+    }
+
+    /**
+     * The channel's logged frames (see {@link ChannelLog#replay}); nothing if it was never logged to.
+     * The caller must hold the channel's lock.
+     */
+    FrameSource replay(String channel, long afterId, int last, ByteBuffer subscriberHeader) throws IOException {
+        Open entry = acquire(channel, false);
+        if (entry == null) {
+            return () -> null;
+        }
+        try {
+            return entry.log().replay(afterId, last, subscriberHeader);
+        } finally {
+            release(channel, entry, false);
+        }
+    }
+
+    private void startRetentionCheck() {
+        if (RETENTION_CHECK_MILLIS <= 0) {
+            return;
+        }
+        Thread check = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(RETENTION_CHECK_MILLIS);
+                    expireAll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "channel-log-retention");
+        check.setDaemon(true);
+        check.start();
+    }
+
+    /**
+     * Applies the retention limits to every log now, including the segments being written.
+     */
+    void expireAll() {
+        // קודם היומנים הפתוחים: מסמנים אותם בשימוש כדי שלא ייסגרו באמצע (בלי לשנות את סדר ה-LRU)
+        String[] channels;
+        Open[] opened;
+        synchronized (this) {
+            channels = open.keySet().toArray(new String[0]);
+            opened = open.values().toArray(new Open[0]);
+            for (Open entry : opened) {
+                entry.users++;
+            }
+        }
+        for (int i = 0; i < opened.length; i++) {
+            try {
+                ChannelLog log = opened[i].log();
+                if (log != null) {
+                    log.expire();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not apply retention to a channel log: " + e);
+            } finally {
+                release(channels[i], opened[i], false);
+            }
+        }
+        // אחר כך היומנים הסגורים: נפתחים (כמו ב-acquire, כך שאף אחד לא פותח אותם במקביל) רק לזמן האכיפה,
+        // ונסגרים אחריה אם אף אחד לא התחיל להשתמש בהם בינתיים
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root,
+                dir -> Files.isDirectory(dir) && dir.getFileName().toString().startsWith("_"))) {
+            for (Path dir : dirs) {
+                String channel = channelOf(dir.getFileName().toString());
+                synchronized (this) {
+                    if (open.containsKey(channel)) {
+                        continue;
+                    }
+                }
+                if (!ChannelLog.hasExpired(dir, RETENTION_MILLIS)) {
+                    continue;
+                }
+                Open entry = acquire(channel, false);
+                if (entry == null) {
+                    continue;
+                }
+                try {
+                    entry.log().expire();
+                } finally {
+                    release(channel, entry, true);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not apply retention to the channel logs in " + root + ": " + e);
+        }
+    }
+
+    // היומן של הערוץ, פתוח ומסומן בשימוש עד release; null אם אין לו תיקייה ו-create הוא false.
+    // רק מי שהכניס את הרשומה פותח את היומן, מחוץ למנעול; השאר מחכים לו
+    private Open acquire(String channel, boolean create) throws IOException {
+        while (true) {
+            Open entry;
+            boolean opener = false;
+            synchronized (this) {
+                entry = open.get(channel);
+                if (entry == null) {
+                    entry = new Open();
+                    open.put(channel, entry);
+                    opener = true;
+                } else {
+                    entry.users++;
+                }
+            }
+            if (opener) {
+                try {
+                    Path dir = root.resolve(dirOf(channel));
+                    entry.log.complete(!create && !Files.isDirectory(dir) ? null
+                            : new ChannelLog(dir, SEGMENT_BYTES, RETENTION_BYTES, RETENTION_MILLIS, FSYNC));
+                } catch (IOException | RuntimeException e) {
+                    entry.log.completeExceptionally(e);
+                }
+            }
+            ChannelLog log;
+            try {
+                log = entry.log();
+            } catch (IOException | RuntimeException e) {
+                // הפתיחה נכשלה: הרשומה יוצאת מהמפה, והבא ינסה לפתוח מחדש
+                discard(channel, entry);
+                throw e;
+            }
+            if (log != null) {
+                return entry;
+            }
+            discard(channel, entry);
+            if (!create) {
+                return null;
+            }
+            // חיכינו למי שרק בדק אם יש תיקייה; אנחנו צריכים ליצור אותה
+        }
+    }
+
+    private synchronized void discard(String channel, Open entry) {
+        entry.users--;
+        open.remove(channel, entry);
+    }
+
+    // evict: סוגרים את היומן אם אף אחד אחר לא משתמש בו, גם מתחת למגבלה
+    private void release(String channel, Open entry, boolean evict) {
+        List<ChannelLog> idle;
+        synchronized (this) {
+            entry.users--;
+            if (evict && entry.users == 0 && open.remove(channel, entry)) {
+                idle = new ArrayList<>();
+                idle.add(entry.log.join());
+            } else {
+                idle = closeIdle();
+            }
+        }
+        for (ChannelLog log : idle) {
+            log.close();
+        }
+    }
+
+    // מעל המגבלה: מוציאים את היומנים הכי פחות שימושיים שאף ת'רד לא משתמש בהם כרגע; הקורא סוגר אותם
+    private List<ChannelLog> closeIdle() {
+        List<ChannelLog> idle = new ArrayList<>();
+        Iterator<Open> leastRecentFirst = open.values().iterator();
+        while (open.size() > MAX_OPEN && leastRecentFirst.hasNext()) {
+            Open entry = leastRecentFirst.next();
+            if (entry.users == 0) {
+                leastRecentFirst.remove();
+                idle.add(entry.log.join());
+            }
+        }
+        return idle;
+    }
+
+    // שם הערוץ כשם תיקייה: '_' ואחריו השם, שבו אותיות, ספרות ו-'-' נשארים וכל השאר %XX
+    // (כך גם "/", ".." וערוץ בלי שם מקבלים תיקייה משלהם)
+    private static String dirOf(String channel) {
+        StringBuilder name = new StringBuilder("_");
+        for (byte b : channel.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-') {
+                name.append(c);
+            } else {
+                name.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return name.toString();
+    }
+
+    private static String channelOf(String dir) throws UnsupportedEncodingException {
+        return URLDecoder.decode(dir.substring(1), "UTF-8");
+    }
+}
@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,23 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends one message that was already encoded, given as consecutive parts (e.g. a per-recipient
+     * header followed by a body shared by many handlers). The parts are written in order with nothing
+     * interleaved between them. Implementations must not modify the buffers or move their positions,
+     * they read from duplicates.
+     */
+    void sendEncoded(ByteBuffer... parts);
+
+    /**
+     * Sends every frame of the source, in order, before anything sent after this call.
+     * This default drains the source at once; handlers with an outbound queue pull it as the socket drains.
+     */
+    default void sendStream(FrameSource source) {
+        ByteBuffer[] frame;
+        while ((frame = source.next()) != null) {
+            sendEncoded(frame);
+        }
+    }
+
 }
@@ -1,20 +1,66 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.MessageEncoderDecoder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
+    // היסטוריית הודעות לכל ערוץ (כבויה כברירת מחדל; מדליקים עם מספר הודעות חיובי), ותקרה על הזיכרון של כל ההיסטוריות יחד
+    private static final int HISTORY_MESSAGES = Integer.getInteger("stomp.history.messages", 0);
+    private static final long HISTORY_CHANNEL_BYTES = Long.getLong("stomp.history.channel.bytes", 1L << 20);
+    private static final long HISTORY_MAX_BYTES = Long.getLong("stomp.history.max.bytes", 64L << 20);
+    // מספר המנעולים שהערוצים מתחלקים בהם (לפי hash של השם); חזקה של 2
+    private static final int CHANNEL_LOCKS = 256;
+
     // מיפוי בין מזהה ייחודי (ID) לבין ה-ConnectionHandler של אותו לקוח
     private final ConcurrentHashMap<Integer, ConnectionHandler<T>> activeConnections;
 
     // מיפוי בין שם ערוץ (Topic) לבין רשימה של מזהי לקוחות שרשומים אליו
     // הערה: נצטרך מבנה נתונים שמחזיק רשימת מנויים לכל ערוץ
-    // <ChannelName, ListOfClientIDs>
-    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Boolean>> channels;
+    // <ChannelName, SubscriberSet>
+    // כל מנוי שמור עם ה-handler שלו ועם החלק האישי שלו בכותרת ההודעה (למשל subscription:<id>), מקודד מראש
+    private final ConcurrentHashMap<String, SubscriberSet<T>> channels;
+
+    // אינדקס הפוך: לכל לקוח, הערוצים שיש לו בהם מנוי אחד לפחות (כדי שניתוק לא יעבור על כל הערוצים)
+    private final ConcurrentHashMap<Integer, Set<String>> connectionChannels;
+
+    // ההודעות האחרונות של כל ערוץ; נשארות גם כשאין בערוץ מנויים (ערוץ ריק נמחק רק מ-channels).
+    // רק כשההיסטוריה בזיכרון פעילה (כשיש יומן ה-replay נקרא ממנו ואין כאן כלום)
+    private final ConcurrentHashMap<String, ChannelHistory> histories;
+    // המנעול של ערוץ: תחתיו ניתן ה-message-id, ההודעה נשמרת בהיסטוריה וביומן ונלקחים המנויים,
+    // ותחתיו נרשם מנוי עם replay. ערוצים חולקים מנעולים, כך שאין אובייקט נעילה לכל ערוץ שהיה אי פעם
+    private final Object[] channelLocks = new Object[CHANNEL_LOCKS];
+    // סך הבתים בכל ההיסטוריות; מתעדכן רק תחת המנעול של הערוץ שהשתנה
+    private final AtomicLong historyBytes = new AtomicLong();
+    private final Object evictionLock = new Object();
+    // יומן קבוע על הדיסק לכל ערוץ (stomp.log.dir), או null אם הוא כבוי; כשהוא פעיל ה-replay נקרא ממנו
+    private final ChannelLogs logs;
+    // message-id ייחודי לכל השרת, ממשיך אחרי ה-id האחרון ביומנים
+    private final AtomicLong messageIds;
+
+    // מקודד משותף להודעות לערוץ; encode לא שומר מצב ולכן בטוח לשימוש מכמה ת'רדים
+    private final MessageEncoderDecoder<T> encoder;
 
-    public ConnectionsImpl() {
+    public ConnectionsImpl(MessageEncoderDecoder<T> encoder) {
         this.activeConnections = new ConcurrentHashMap<>();
         this.channels = new ConcurrentHashMap<>();
+        this.connectionChannels = new ConcurrentHashMap<>();
+        this.histories = new ConcurrentHashMap<>();
+        this.logs = ChannelLogs.fromProperties();
+        this.messageIds = new AtomicLong(logs == null ? 0 : logs.lastId());
+        this.encoder = encoder;
+        for (int i = 0; i < CHANNEL_LOCKS; i++) {
+            channelLocks[i] = new Object();
+        }
     }
 
     @Override
@@ -28,26 +74,132 @@ public class ConnectionsImpl<T> implements Connections<T> {
         return false;
     }
 
+    /**
+     * Sends bytes that are already encoded (e.g. constant frames built once) to one client,
+     * bypassing the encoder.
+     */
+    public boolean sendEncoded(int connectionId, ByteBuffer... parts) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler != null) {
+            handler.sendEncoded(parts);
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void send(String channel, T msg) {
         // TODO: לממש שליחה לכל מי שנרשם לערוץ הזה
-        ConcurrentHashMap<Integer, Boolean> subscribers = channels.get(channel);
-        if (subscribers != null) {
-            for (Integer clientId : subscribers.keySet()) {
-                send(clientId, msg);
+        SubscriberSet<T> subscribers = channels.get(channel);
+        if (subscribers == null || subscribers.isEmpty()) {
+            return;
+        }
+        // מקודדים פעם אחת וכל המנויים חולקים את אותם בתים
+        ByteBuffer encoded = ByteBuffer.wrap(encoder.encode(msg));
+        for (SubscriberSet.Subscriber<T> subscriber : subscribers.snapshot()) {
+            subscriber.handler.sendEncoded(encoded);
+        }
+    }
+
+    /**
+     * Sends one frame to every subscriber of the channel, built as head + the subscriber's own
+     * header part (given when it subscribed) + body. head and body are shared by all the recipients,
+     * only the small per-subscriber part differs, so nothing is encoded or copied per recipient.
+     * The frame is also kept in the channel's history and log, to be replayed to later subscribers.
+     * @param head builds the head for the message-id the message gets, a new id larger than every id
+     *             given before (also before a restart, when the channel logs are on). The id is given
+     *             under the channel's lock, so the history and log of a channel are always in id order
+     *             and a replay-from can not miss a message
+     */
+    public void send(String channel, LongFunction<ByteBuffer> head, ByteBuffer body) {
+        if (HISTORY_MESSAGES <= 0 && logs == null) {
+            SubscriberSet<T> subscribers = channels.get(channel);
+            ByteBuffer frameHead = head.apply(messageIds.incrementAndGet());
+            if (subscribers != null) {
+                broadcast(subscribers.snapshot(), frameHead, body);
+            }
+            return;
+        }
+        SubscriberSet.Subscriber<T>[] recipients;
+        ByteBuffer frameHead;
+        // המנויים נלקחים יחד עם השמירה: מי שנרשם אחרי זה יקבל את ההודעה ב-replay
+        synchronized (lockOf(channel)) {
+            long messageId = messageIds.incrementAndGet();
+            frameHead = head.apply(messageId);
+            if (logs != null) {
+                appendToLog(channel, messageId, frameHead, body);
+            } else {
+                ChannelHistory history = histories.computeIfAbsent(channel,
+                        name -> new ChannelHistory(HISTORY_MESSAGES, HISTORY_CHANNEL_BYTES));
+                historyBytes.addAndGet(history.append(messageId, frameHead, body));
+            }
+            SubscriberSet<T> subscribers = channels.get(channel);
+            recipients = subscribers == null ? SubscriberSet.<T>none() : subscribers.snapshot();
+        }
+        if (historyBytes.get() > HISTORY_MAX_BYTES) {
+            evictIdleHistories();
+        }
+        broadcast(recipients, frameHead, body);
+    }
+
+    private void broadcast(SubscriberSet.Subscriber<T>[] recipients, ByteBuffer head, ByteBuffer body) {
+        for (SubscriberSet.Subscriber<T> subscriber : recipients) {
+            subscriber.handler.sendEncoded(head, subscriber.header, body);
+        }
+    }
+
+    // יומן שלא הצליח לכתוב (למשל דיסק מלא) לא עוצר את ההודעה למנויים
+    private void appendToLog(String channel, long messageId, ByteBuffer head, ByteBuffer body) {
+        try {
+            logs.append(channel, messageId, head, body);
+        } catch (IOException e) {
+            System.err.println("Could not log message " + messageId + " of " + channel + ": " + e.getMessage());
+        }
+    }
+
+    private Object lockOf(String channel) {
+        int hash = channel.hashCode();
+        return channelLocks[(hash ^ (hash >>> 16)) & (CHANNEL_LOCKS - 1)];
+    }
+
+    // מעל התקרה: מוחקים את ההיסטוריה של הערוצים שלא היו בשימוש הכי הרבה זמן, עד 90% מהתקרה
+    private void evictIdleHistories() {
+        synchronized (evictionLock) {
+            long target = HISTORY_MAX_BYTES - HISTORY_MAX_BYTES / 10;
+            if (historyBytes.get() <= target) {
+                return;
+            }
+            // הזמנים נלקחים פעם אחת, כדי שהמיון לא יראה ערכים שמשתנים תוך כדי
+            List<Map.Entry<Long, String>> byAge = new ArrayList<>(histories.size());
+            for (Map.Entry<String, ChannelHistory> entry : histories.entrySet()) {
+                byAge.add(new AbstractMap.SimpleImmutableEntry<>(entry.getValue().lastUsed(), entry.getKey()));
+            }
+            byAge.sort(Map.Entry.comparingByKey());
+            for (Map.Entry<Long, String> oldest : byAge) {
+                if (historyBytes.get() <= target) {
+                    break;
+                }
+                synchronized (lockOf(oldest.getValue())) {
+                    ChannelHistory history = histories.remove(oldest.getValue());
+                    if (history != null) {
+                        historyBytes.addAndGet(-history.evict());
+                    }
+                }
             }
-        }   
+        }
     }
 
     @Override
     public void disconnect(int connectionId) {
         // TODO: לממש ניתוק לקוח והסרה שלו מהמערכת
         activeConnections.remove(connectionId);
-        // הסרה מכל הערוצים שהלקוח היה רשום אליהם       
-        for (ConcurrentHashMap<Integer, Boolean> subscribers : channels.values()) {
-            subscribers.remove(connectionId);
+        // הסרה רק מהערוצים שהלקוח היה רשום אליהם
+        Set<String> subscribed = connectionChannels.remove(connectionId);
+        if (subscribed != null) {
+            for (String channel : subscribed) {
+                removeConnection(channel, connectionId);
+            }
         }
-
     }
 
     // פונקציה שנוסיף כדי להוסיף לקוח חדש לרשימה (השרת יקרא לה כשלוקח מתחבר)
@@ -56,15 +208,91 @@ public class ConnectionsImpl<T> implements Connections<T> {
     }
 
     // פונקציה שנוסיף כדי לרשום לקוח לערוץ
-    public void subscribeToChannel(String channel, int connectionId) {
-        channels.computeIfAbsent(channel, k -> new ConcurrentHashMap<>()).put(connectionId, true);
+    // subscriptionId - המזהה שהלקוח נתן למנוי; subscriberHeader - החלק האישי של המנוי בכל הודעה שתישלח בערוץ
+    public void subscribeToChannel(String channel, int connectionId, String subscriptionId, ByteBuffer subscriberHeader) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler == null) {
+            return;
+        }
+        // compute נועל את הערוץ, כך שלא נכניס מנוי לערוץ ריק שבדיוק נמחק
+        channels.compute(channel, (name, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = new SubscriberSet<>();
+            }
+            subscribers.add(connectionId, subscriptionId, handler, subscriberHeader);
+            return subscribers;
+        });
+        connectionChannels.computeIfAbsent(connectionId, k -> ConcurrentHashMap.newKeySet()).add(channel);
+        // הלקוח התנתק בזמן ההרשמה - לא משאירים handler סגור ברשימת המנויים
+        if (!activeConnections.containsKey(connectionId)) {
+            connectionChannels.remove(connectionId);
+            removeConnection(channel, connectionId);
+        }
     }
     
-    // פונקציה שנוסיף כדי להסיר לקוח מערוץ
-    public void unsubscribeFromChannel(String channel, int connectionId) {
-        ConcurrentHashMap<Integer, Boolean> subscribers = channels.get(channel);
-        if (subscribers != null) {
-            subscribers.remove(connectionId);
+    /**
+     * Subscribes like {@link #subscribeToChannel(String, int, String, ByteBuffer)} and first sends the
+     * subscriber the channel's retained messages (from its log when the logs are on) with an id
+     * above afterId, at most the newest last of them, oldest first. Every message sent to the channel reaches the subscriber exactly once,
+     * from the replay or live, and the replay comes before any live message.
+     * @param afterId -1 to not filter by id
+     * @param last 0 for no replay
+     */
+    public void subscribeToChannel(String channel, int connectionId, String subscriptionId, ByteBuffer subscriberHeader,
+                                   long afterId, int last) {
+        if ((HISTORY_MESSAGES <= 0 && logs == null) || last <= 0) {
+            subscribeToChannel(channel, connectionId, subscriptionId, subscriberHeader);
+            return;
         }
+        // תחת המנעול של הערוץ אף הודעה לא נשלחת אליו, אז ה-replay נכנס לתור לפני הודעות חדשות
+        synchronized (lockOf(channel)) {
+            subscribeToChannel(channel, connectionId, subscriptionId, subscriberHeader);
+            ConnectionHandler<T> handler = activeConnections.get(connectionId);
+            if (handler == null) {
+                return;
+            }
+            if (logs != null) {
+                replayFromLog(channel, handler, subscriberHeader, afterId, last);
+                return;
+            }
+            ChannelHistory history = histories.get(channel);
+            if (history != null) {
+                for (ChannelHistory.Message message : history.select(afterId, last)) {
+                    handler.sendEncoded(message.head, subscriberHeader, message.body);
+                }
+            }
+        }
+    }
+
+    // ה-replay מהיומן נמשך ע"י הכותב של החיבור לפי קצב הסוקט, כך שיומן ארוך לא ממלא את התור
+    private void replayFromLog(String channel, ConnectionHandler<T> handler, ByteBuffer subscriberHeader,
+                               long afterId, int last) {
+        try {
+            handler.sendStream(logs.replay(channel, afterId, last, subscriberHeader));
+        } catch (IOException e) {
+            System.err.println("Could not replay the log of " + channel + ": " + e.getMessage());
+        }
+    }
+
+    // פונקציה שנוסיף כדי להסיר מנוי אחד של לקוח מערוץ
+    public void unsubscribeFromChannel(String channel, int connectionId, String subscriptionId) {
+        boolean[] stillSubscribed = new boolean[1];
+        channels.computeIfPresent(channel, (name, subscribers) -> {
+            stillSubscribed[0] = subscribers.remove(connectionId, subscriptionId);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+        // הערוץ יוצא מהאינדקס ההפוך רק כשלא נשאר ללקוח בו אף מנוי
+        Set<String> subscribed = connectionChannels.get(connectionId);
+        if (subscribed != null && !stillSubscribed[0]) {
+            subscribed.remove(channel);
+        }
+    }
+
+    // ערוץ שהתרוקן נמחק מהמפה כדי שלא יישארו ערוצים מתים בזיכרון
+    private void removeConnection(String channel, int connectionId) {
+        channels.computeIfPresent(channel, (name, subscribers) -> {
+            subscribers.removeConnection(connectionId);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
     }
 }
\ No newline at end of file
@@ -1,63 +1,156 @@
 package bgu.spl.net.srv;
 
-import java.io.*;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 public class DatabaseService {
-    private final String host = "127.0.0.1";
-    private final int port = 7778; // הפורט של שרת הפייתון
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 7778; // הפורט של שרת הפייתון
+    private static final int POOL_SIZE = Integer.getInteger("sql.pool.size", 8);
+    private static final int AUDIT_QUEUE_SIZE = Integer.getInteger("audit.queue.size", 10000);
+    // מנה נשלחת לפייתון כבקשה אחת, שבה מספר המשפטים הוא unsigned short
+    private static final int AUDIT_BATCH_SIZE = Math.min(Integer.getInteger("audit.batch.size", 256),
+            SqlConnectionPool.MAX_BATCH);
+    // sql - שרת הפייתון, journal - יומן בתוך ה-JVM
+    private static final String STORAGE = System.getProperty("stomp.storage", "sql");
+    private static final String JOURNAL_FILE = System.getProperty("stomp.journal.file", "stomp_server.journal");
+    private static final boolean JOURNAL_FSYNC = Boolean.getBoolean("stomp.journal.fsync");
+    // כמה שורות הדוח קורא מה-storage בכל פעם
+    private static final int REPORT_PAGE_SIZE = Integer.getInteger("report.page.size", 1000);
+
+    // איפה הנתונים נשמרים בפועל
+    private final Storage storage;
+    // כתיבות ה-audit (כניסה/יציאה/קבצים) נכתבות ברקע, במנות
+    private final AuditWriter auditWriter;
+
+    private DatabaseService() {
+        this.storage = createStorage();
+        this.auditWriter = new AuditWriter(AUDIT_QUEUE_SIZE, AUDIT_BATCH_SIZE, this::writeAuditBatch);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "database-shutdown"));
+    }
+
+    public static DatabaseService getInstance() {
+        return Instance.instance;
+    }
+
+    private static Storage createStorage() {
+        switch (STORAGE) {
+            case "sql":
+                return new SqlSidecarStorage(HOST, PORT, POOL_SIZE);
+            case "journal":
+                try {
+                    return new JournalStorage(Paths.get(JOURNAL_FILE), JOURNAL_FSYNC);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not open the journal " + JOURNAL_FILE, e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown stomp.storage '" + STORAGE + "', use 'sql' or 'journal'");
+        }
+    }
 
     /**
-     * פונקציית העזר ששולחת פקודת SQL לפייתון ומחזירה את התשובה.
+     * @return every stored user, username to password (empty if the storage failed)
      */
-    public synchronized String execute(String sqlCommand) {
-        try (Socket socket = new Socket(host, port);
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+    public Map<String, String> loadUsers() {
+        try {
+            return storage.loadUsers();
+        } catch (IOException e) {
+            System.err.println("Could not load users: " + e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
 
-            // שליחת הפקודה
-            out.write(sqlCommand);
-            out.write('\0'); // תו סיום הודעה כפי שהפייתון מצפה
-            out.flush();
+    /**
+     * @return the stored password of the user, or null if it is unknown (or the storage failed)
+     */
+    public String findPassword(String username) {
+        try {
+            return storage.findPassword(username);
+        } catch (IOException e) {
+            System.err.println("Could not look up " + username + ": " + e.getMessage());
+            return null;
+        }
+    }
 
-            // קריאת התשובה
-            StringBuilder response = new StringBuilder();
-            int c;
-            while ((c = in.read()) != -1) {
-                if (c == '\0') break; // סוף תשובה
-                response.append((char) c);
-            }
-            return response.toString();
+    /**
+     * Writes a new user through to the storage.
+     */
+    public void addUser(String username, String password) {
+        try {
+            storage.addUser(username, password);
+        } catch (IOException e) {
+            System.err.println("Could not store user " + username + ": " + e.getMessage());
+        }
+    }
 
+    /**
+     * Queues a login record; returns without waiting for the database.
+     */
+    public void logLogin(String username) {
+        auditWriter.submit(AuditRecord.login(username));
+    }
+
+    /**
+     * Queues a logout record for the user's latest login; returns without waiting for the database.
+     */
+    public void logLogout(String username) {
+        auditWriter.submit(AuditRecord.logout(username));
+    }
+
+    /**
+     * Queues a file upload record; returns without waiting for the database.
+     */
+    public void trackFileUpload(String username, String fileName) {
+        auditWriter.submit(AuditRecord.fileUpload(username, fileName));
+    }
+
+    /**
+     * Flushes pending audit records and closes the storage.
+     */
+    public void shutdown() {
+        auditWriter.close();
+        storage.close();
+    }
+
+    private void writeAuditBatch(List<AuditRecord> batch) {
+        try {
+            storage.writeAudit(batch);
         } catch (IOException e) {
-            e.printStackTrace();
-            return "Error: " + e.getMessage();
+            System.err.println("Audit batch of " + batch.size() + " records failed: " + e.getMessage());
         }
     }
 
     /**
-     * Prints the required server-side report using SQL queries.
-     * Requirements: 
+     * Prints the required server-side report from the storage, streaming it page by page.
      */
     public void printReport() {
-        System.out.println("--- Server Data Report ---");
-        
-        // 1. רשימת משתמשים רשומים
-        System.out.println("\n[Registered Users]:");
-        String users = execute("SELECT username FROM Users");
-        System.out.println(users);
-
-        // 2. היסטוריית התחברויות (משתמש, זמן כניסה, זמן יציאה)
-        System.out.println("\n[Login History]:");
-        String history = execute("SELECT username, login_time, logout_time FROM Login_History");
-        System.out.println(history);
-
-        // 3. קבצים שהועלו
-        System.out.println("\n[Uploaded Files]:");
-        String files = execute("SELECT username, filename, upload_time FROM Uploaded_Files");
-        System.out.println(files);
-        
-        System.out.println("--------------------------");
+        try {
+            new ReportWriter(storage, REPORT_PAGE_SIZE).write(System.out);
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the server-side report to a file, streaming it page by page.
+     * @return false if the storage or the file failed
+     */
+    public boolean writeReport(Path file) {
+        try {
+            new ReportWriter(storage, REPORT_PAGE_SIZE).write(file);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not write the report to " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static class Instance {
+        static DatabaseService instance = new DatabaseService();
     }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames that are produced only when the connection's writer gets to them, e.g. a replay read from a
+ * channel's log. The writer pulls the next frame once the socket took the previous ones, so a long
+ * replay never sits in the outbound queue as a whole, and whatever is sent after it is written after
+ * all of its frames.
+ */
+public interface FrameSource {
+
+    /**
+     * Called by the connection's writer only, one call at a time.
+     * @return the parts of the next frame (the writer moves their positions), or null when there are no more
+     */
+    ByteBuffer[] next();
+}
@@ -0,0 +1,303 @@
+package bgu.spl.net.srv;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process {@link Storage}: the tables live in memory and every change is appended to a
+ * journal file, which is replayed on startup. Nothing crosses a socket, so a login costs a map
+ * lookup and, for a new user, one buffered append.
+ *
+ * Each journal entry is a type byte followed by its fields, each a u32 length and UTF-8 bytes
+ * (so a field of any length fits). The entries of a call are encoded aside first and appended to
+ * the file in one write, so a failure never leaves part of an entry behind a complete one. An entry
+ * cut short by a crash is dropped on replay and the file is truncated back to the last complete entry.
+ * Journals written before the u32 lengths (upper-case type bytes, fields written with
+ * DataOutputStream.writeUTF) are still read.
+ */
+public class JournalStorage implements Storage {
+
+    private static final byte USER = 'u';
+    private static final byte LOGIN = 'i';
+    private static final byte LOGOUT = 'o';
+    private static final byte FILE_UPLOAD = 'f';
+
+    // שורה בטבלת ההתחברויות
+    private static final class Login {
+        final String username;
+        final String loginTime;
+        String logoutTime;
+
+        Login(String username, String loginTime) {
+            this.username = username;
+            this.loginTime = loginTime;
+        }
+    }
+
+    // שורה בטבלת הקבצים
+    private static final class Upload {
+        final String username;
+        final String fileName;
+        final String time;
+
+        Upload(String username, String fileName, String time) {
+            this.username = username;
+            this.fileName = fileName;
+            this.time = time;
+        }
+    }
+
+    private final boolean fsync;
+    // כתיבות לקובץ ועדכוני הטבלאות (חוץ מ-users) נעשים תחת הנעילה; ReentrantLock ולא synchronized בגלל ת'רדים וירטואליים
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FileOutputStream file;
+    private final BufferedOutputStream journal;
+    // הרשומות של הקריאה הנוכחית מקודדות כאן לפני שהן נכתבות לקובץ בבת אחת; מוגן ע"י lock
+    private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    private final DataOutputStream entry = new DataOutputStream(entries);
+
+    private final ConcurrentHashMap<String, String> users = new ConcurrentHashMap<>();
+    private final List<Login> loginHistory = new ArrayList<>();
+    // ההתחברות האחרונה של כל משתמש, שה-LOGOUT הבא שלו סוגר
+    private final Map<String, Login> latestLogin = new HashMap<>();
+    private final List<Upload> uploads = new ArrayList<>();
+
+    /**
+     * Opens (or creates) the journal and replays it into memory.
+     * @param fsync force every write to disk before returning, not only to the OS
+     */
+    public JournalStorage(Path path, boolean fsync) throws IOException {
+        this.fsync = fsync;
+        if (Files.exists(path)) {
+            replay(path);
+        }
+        this.file = new FileOutputStream(path.toFile(), true);
+        this.journal = new BufferedOutputStream(file);
+    }
+
+    @Override
+    public Map<String, String> loadUsers() {
+        return new HashMap<>(users);
+    }
+
+    @Override
+    public String findPassword(String username) {
+        return users.get(username);
+    }
+
+    @Override
+    public void addUser(String username, String password) throws IOException {
+        lock.lock();
+        try {
+            entries.reset();
+            entry.writeByte(USER);
+            writeText(username);
+            writeText(password);
+            append();
+            users.putIfAbsent(username, password);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void writeAudit(List<AuditRecord> batch) throws IOException {
+        lock.lock();
+        try {
+            entries.reset();
+            for (AuditRecord record : batch) {
+                write(record);
+            }
+            // מנה שלמה - כתיבה ו-flush אחד
+            append();
+            for (AuditRecord record : batch) {
+                apply(record.getType(), record.getUsername(), record.getFileName(), record.getTime());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void scan(Table table, int pageSize, RowConsumer consumer) throws IOException {
+        if (table == Table.USERS) {
+            // ConcurrentHashMap - אפשר לעבור עליה בלי נעילה
+            for (String username : users.keySet()) {
+                consumer.accept(new String[] {username});
+            }
+            return;
+        }
+        // הטבלאות רק גדלות, אז מספיק לזכור אינדקס; כל עמוד מועתק תחת הנעילה ונכתב אחריה
+        String[][] page = new String[pageSize][];
+        int next = 0;
+        int count;
+        do {
+            lock.lock();
+            try {
+                count = table == Table.LOGIN_HISTORY ? copyLogins(next, page) : copyUploads(next, page);
+            } finally {
+                lock.unlock();
+            }
+            for (int i = 0; i < count; i++) {
+                consumer.accept(page[i]);
+                page[i] = null;
+            }
+            next += count;
+        } while (count == pageSize);
+    }
+
+    private int copyLogins(int from, String[][] page) {
+        int count = Math.max(0, Math.min(page.length, loginHistory.size() - from));
+        for (int i = 0; i < count; i++) {
+            Login login = loginHistory.get(from + i);
+            page[i] = new String[] {login.username, login.loginTime, login.logoutTime};
+        }
+        return count;
+    }
+
+    private int copyUploads(int from, String[][] page) {
+        int count = Math.max(0, Math.min(page.length, uploads.size() - from));
+        for (int i = 0; i < count; i++) {
+            Upload upload = uploads.get(from + i);
+            page[i] = new String[] {upload.username, upload.fileName, upload.time};
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(AuditRecord record) throws IOException {
+        switch (record.getType()) {
+            case LOGIN:
+                entry.writeByte(LOGIN);
+                break;
+            case LOGOUT:
+                entry.writeByte(LOGOUT);
+                break;
+            default:
+                entry.writeByte(FILE_UPLOAD);
+                writeText(record.getFileName());
+                break;
+        }
+        writeText(record.getUsername());
+        writeText(record.getTime());
+    }
+
+    private void writeText(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        entry.writeInt(bytes.length);
+        entry.write(bytes);
+    }
+
+    // כותב לקובץ את הרשומות שקודדו, ב-write אחד
+    private void append() throws IOException {
+        entries.writeTo(journal);
+        entries.reset();
+        journal.flush();
+        if (fsync) {
+            file.getFD().sync();
+        }
+    }
+
+    private void apply(AuditRecord.Type type, String username, String fileName, String time) {
+        switch (type) {
+            case LOGIN:
+                Login login = new Login(username, time);
+                loginHistory.add(login);
+                latestLogin.put(username, login);
+                break;
+            case LOGOUT:
+                Login latest = latestLogin.get(username);
+                if (latest != null) {
+                    latest.logoutTime = time;
+                }
+                break;
+            default:
+                uploads.add(new Upload(username, fileName, time));
+                break;
+        }
+    }
+
+    // קורא את היומן לזיכרון; רשומה חלקית בסוף (קריסה באמצע כתיבה) נחתכת מהקובץ
+    private void replay(Path path) throws IOException {
+        byte[] content = Files.readAllBytes(path);
+        ByteArrayInputStream bytes = new ByteArrayInputStream(content);
+        DataInputStream in = new DataInputStream(bytes);
+        int valid = 0;
+        try {
+            int type;
+            while ((type = in.read()) != -1) {
+                // אות גדולה - רשומה בפורמט הקודם, עם שדות ב-writeUTF
+                boolean old = Character.isUpperCase(type);
+                switch (Character.toLowerCase(type)) {
+                    case USER: {
+                        String username = readText(in, old);
+                        users.putIfAbsent(username, readText(in, old));
+                        break;
+                    }
+                    case LOGIN:
+                        apply(AuditRecord.Type.LOGIN, readText(in, old), null, readText(in, old));
+                        break;
+                    case LOGOUT:
+                        apply(AuditRecord.Type.LOGOUT, readText(in, old), null, readText(in, old));
+                        break;
+                    case FILE_UPLOAD: {
+                        String fileName = readText(in, old);
+                        apply(AuditRecord.Type.FILE_UPLOAD, readText(in, old), fileName, readText(in, old));
+                        break;
+                    }
+                    default:
+                        throw new IOException("corrupt journal " + path + " at byte " + valid);
+                }
+                valid = content.length - bytes.available();
+            }
+        } catch (EOFException ex) {
+            System.err.println("Dropping a partial entry at the end of " + path);
+        }
+        if (valid < content.length) {
+            try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+                raf.setLength(valid);
+            }
+        }
+    }
+
+    // שדה ארוך ממה שנשאר בקובץ הוא רשומה שנחתכה
+    private static String readText(DataInputStream in, boolean old) throws IOException {
+        if (old) {
+            return in.readUTF();
+        }
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
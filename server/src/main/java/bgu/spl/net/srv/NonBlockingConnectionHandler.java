@@ -1,38 +1,63 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.MalformedMessageException;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
-    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final BufferPool BUFFER_POOL = BufferPool.shared();
+    private static final int INITIAL_READ_SIZE = 1 << 11; //2k
+    // מגבלות לכתיבה אחת: כמות בתים ומספר חלקים בקריאת מערכת אחת
+    private static final int MAX_WRITE_BYTES = Integer.getInteger("stomp.write.max.bytes", 1 << 16);
+    private static final int MAX_WRITE_BUFFERS = 64;
 
     private final MessagingProtocol<T> protocol;
     private final StompMessagingProtocol<T> stompProtocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    // כל איבר בתור הוא הודעה אחת, אולי בכמה חלקים (כותרת אישית + גוף משותף); התור חסום
+    private final OutboundQueue outbound = new OutboundQueue();
+    // מערך החלקים לכתיבה מרוכזת; משמש רק את מי שמחזיק ב-writerLock
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_WRITE_BUFFERS];
+    // הכותב הנוכחי: ת'רד הסלקטור, או ת'רד שולח שכותב ישירות כשאין כתיבה ממתינה
+    private final ReentrantLock writerLock = new ReentrantLock();
+    // האם OP_WRITE כבר מבוקש מהסלקטור (עד שהתור מתרוקן)
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
     private final SocketChannel chan;
-    private final Reactor reactor;
+    // באפר הקבלה של החיבור: נקרא לתוכו בת'רד הסלקטור ומפוענח ב-ActorThreadPool, תמיד תחת readLock.
+    // פריים שהגיע בחלקים נשאר בו עד שהוא שלם, בלי להעתיק אותו הצידה
+    private final ReentrantLock readLock = new ReentrantLock();
+    private ByteBuffer readBuffer;
+    // הגודל הרגיל של באפר הקבלה, מסתגל לתעבורה של הלקוח (מוגן ע"י readLock)
+    private int readSize = INITIAL_READ_SIZE;
+    // הלקוח שלח משהו שאי אפשר לפענח; לא קוראים ממנו יותר (מוגן ע"י readLock)
+    private boolean inputRejected;
+    private final SelectorLoop loop;
+    // המשימות של החיבור הזה ב-ActorThreadPool (רצות אחת-אחת ולפי הסדר)
+    private final ActorMailbox mailbox = new ActorMailbox();
 
     // בנאי 1: ישן
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            SelectorLoop loop) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
         this.stompProtocol = null;
     }
 
@@ -41,61 +66,131 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             MessageEncoderDecoder<T> reader,
             StompMessagingProtocol<T> stompProtocol,
             SocketChannel chan,
-            Reactor reactor) {
+            SelectorLoop loop) {
         
         this.chan = chan;
         this.encdec = reader;
         this.protocol = null; 
         this.stompProtocol = stompProtocol;
-        this.reactor = reactor;
+        this.loop = loop;
     }
 
-    public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+    /*package*/ ActorMailbox mailbox() {
+        return mailbox;
+    }
 
-        boolean success = false;
+    public Runnable continueRead() {
+        int read = -1;
+        readLock.lock();
         try {
-            success = chan.read(buf) != -1;
+            if (inputRejected) {
+                return null; // החיבור נסגר אחרי שה-ERROR ייכתב
+            }
+            if (readBuffer == null) {
+                readBuffer = BUFFER_POOL.lease(readSize);
+            } else if (!readBuffer.hasRemaining()) {
+                // פריים חלקי שממלא את כל הבאפר - מגדילים
+                readBuffer = grow(readBuffer);
+            }
+            int space = readBuffer.remaining();
+            read = chan.read(readBuffer);
+            adaptReadSize(read, space);
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            readLock.unlock();
         }
 
-        if (success) {
-            buf.flip();
-            return () -> {
-                try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            // הפרדה לפי סוג הפרוטוקול
-                            if (stompProtocol != null) {
-                                stompProtocol.process(nextMessage);
-                            } else if (protocol != null) {
-                                T response = protocol.process(nextMessage);
-                                if (response != null) {
-                                    writeQueue.add(ByteBuffer.wrap(encdec.encode(response)));
-                                    reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                                }
-                            }
-                        }
-                    }
-                } finally {
-                    releaseBuffer(buf);
-                }
-            };
-        } else {
-            releaseBuffer(buf);
+        if (read == -1) {
             close();
             return null;
         }
+        return read > 0 ? this::decodeAndProcess : null;
+    }
+
+    // רץ ב-ActorThreadPool: מפענחים תחת הנעילה, ומטפלים בהודעות אחרי שחרורה כדי לא לעכב את הקריאה הבאה
+    private void decodeAndProcess() {
+        List<T> messages = new ArrayList<>();
+        MalformedMessageException malformed = null;
+        readLock.lock();
+        try {
+            if (readBuffer == null || inputRejected) {
+                return; // החיבור נסגר בינתיים
+            }
+            readBuffer.flip();
+            try {
+                encdec.decodeComplete(readBuffer, messages::add);
+            } catch (MalformedMessageException ex) {
+                malformed = ex;
+                inputRejected = true;
+                readBuffer.position(readBuffer.limit()); // שאר הקלט נזרק
+            }
+            // רק הזנב של פריים חלקי (אם יש) עובר לתחילת הבאפר
+            readBuffer.compact();
+            if (readBuffer.position() == 0 && (readBuffer.capacity() > readSize || inputRejected)) {
+                // באפר שהוגדל בשביל פריים גדול חוזר לגודל הרגיל
+                BUFFER_POOL.release(readBuffer);
+                readBuffer = null;
+            }
+        } finally {
+            readLock.unlock();
+        }
+
+        for (T message : messages) {
+            handleMessage(message);
+        }
+        if (malformed != null) {
+            // הפריימים שלפני הקלט השגוי טופלו; שולחים ERROR (אם הפרוטוקול מגדיר) וסוגרים אחרי שהתור מתרוקן
+            T error = stompProtocol != null ? stompProtocol.malformedError(malformed.getMessage()) : null;
+            send(error);
+            outbound.finish();
+            writeRequested.set(true);
+            loop.updateInterestedOps(chan, SelectionKey.OP_WRITE);
+        } else if (shouldTerminate()) {
+            // continueWrite סוגר את החיבור אחרי שהתור מתרוקן (גם אם לא נשלחה תשובה)
+            writeRequested.set(true);
+            loop.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buff) {
+        ByteBuffer bigger = BUFFER_POOL.lease(buff.capacity() << 1);
+        buff.flip();
+        bigger.put(buff);
+        BUFFER_POOL.release(buff);
+        return bigger;
+    }
+
+    private void handleMessage(T nextMessage) {
+        // הפרדה לפי סוג הפרוטוקול
+        if (stompProtocol != null) {
+            stompProtocol.process(nextMessage);
+        } else if (protocol != null) {
+            T response = protocol.process(nextMessage);
+            if (response != null) {
+                enqueue(new ByteBuffer[]{ByteBuffer.wrap(encdec.encode(response))});
+            }
+        }
     }
 
     public void close() {
+        outbound.reportDrops(chan.socket().getRemoteSocketAddress());
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        readLock.lock();
+        try {
+            if (readBuffer != null) {
+                BUFFER_POOL.release(readBuffer);
+                readBuffer = null;
+            }
+        } finally {
+            readLock.unlock();
+        }
+        // על ה-actor של החיבור, אחרי כל process שעוד בתור (למשל CONNECT שעדיין מול ה-DB)
+        if (stompProtocol != null) loop.submit(mailbox, stompProtocol::onClose);
     }
 
     public boolean isClosed() {
@@ -103,25 +198,60 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
-            try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                close();
+        if (!writerLock.tryLock()) {
+            // ת'רד שולח כותב כרגע ישירות; OP_WRITE נשאר ונחזור באירוע הבא
+            return;
+        }
+        try {
+            if (!writeSome()) {
+                return;
             }
+        } finally {
+            writerLock.unlock();
+        }
+
+        // נשאר מה לכתוב - ממשיכים באירוע הבא, כדי לא להרעיב ערוצים אחרים באותה לולאה
+        if (!outbound.isEmpty()) {
+            return;
+        }
+        if (shouldTerminate() || outbound.isClosing()) {
+            close();
+            return;
+        }
+        // מורידים את הדגל ורק אז בודקים שוב, כדי שהודעה שנכנסה בינתיים לא תיתקע בתור
+        writeRequested.set(false);
+        if (outbound.isEmpty()) {
+            loop.updateInterestedOps(chan, SelectionKey.OP_READ);
+        } else {
+            writeRequested.set(true);
         }
+    }
 
-        if (writeQueue.isEmpty()) {
-            if (shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+    /**
+     * One gathering write of the next queued frames, up to MAX_WRITE_BYTES.
+     * Must be called holding writerLock.
+     * @return false if the write failed and the connection was closed
+     */
+    private boolean writeSome() {
+        // אוספים כמה הודעות מהתור לכתיבה מרוכזת אחת (gathering write), עד למגבלת הבתים
+        int count = outbound.gather(gather, MAX_WRITE_BYTES);
+        if (count == 0) {
+            return true;
         }
+        try {
+            chan.write(gather, 0, count);
+        } catch (IOException ex) {
+            // תשובה (למשל CONNECTED) לחיבור שכבר נסגר אינה תקלה
+            if (!(ex instanceof ClosedChannelException)) {
+                ex.printStackTrace();
+            }
+            close();
+            return false;
+        } finally {
+            Arrays.fill(gather, 0, count, null);
+        }
+        outbound.removeWritten();
+        return true;
     }
 
     // פונקציית עזר שתדע את מי לשאול
@@ -131,18 +261,13 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         return false; // לא אמור לקרות
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    // קריאה שמילאה את המקום הפנוי - מגדילים; קריאה של רבע או פחות - מקטינים (פינג קטן לא תופס 8k)
+    private void adaptReadSize(int read, int space) {
+        if (read >= space) {
+            readSize = Math.min(readSize << 1, BufferPool.MAX_SIZE);
+        } else if (read <= readSize >> 2) {
+            readSize = Math.max(readSize >> 1, BufferPool.MIN_SIZE);
         }
-
-        buff.clear();
-        return buff;
-    }
-
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
     }
 
     @Override
@@ -150,11 +275,64 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         if (msg != null) {
             // no need to sync since updateInterestedOps is synced
             byte[] encodedMsg = encdec.encode(msg);
-            writeQueue.add(ByteBuffer.wrap(encodedMsg));       
-            reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);  
+            enqueue(new ByteBuffer[]{ByteBuffer.wrap(encodedMsg)});
         }
     }
     
+    @Override
+    public void sendEncoded(ByteBuffer... parts) {
+        // כל מנוי מקבל view משלו על אותם בתים, בלי קידוד או העתקה נוספים
+        ByteBuffer[] frame = new ByteBuffer[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            frame[i] = parts[i].duplicate();
+        }
+        enqueue(frame);
+    }
+
+    @Override
+    public void sendStream(FrameSource source) {
+        // ה-source נשאר בתור ונמשך בכל פעם שיש מקום בסוקט
+        enqueued(outbound.offer(source));
+    }
+
+    private void enqueue(ByteBuffer[] frame) {
+        enqueued(outbound.offer(frame));
+    }
+
+    private void enqueued(boolean accepted) {
+        if (!accepted) {
+            // לקוח איטי שהתור שלו התמלא: שולחים לו ERROR (אם הפרוטוקול מגדיר) וסוגרים אחרי שהוא נכתב
+            T error = stompProtocol != null ? stompProtocol.overflowError() : null;
+            outbound.abort(error == null ? null : new ByteBuffer[]{ByteBuffer.wrap(encdec.encode(error))});
+        } else if (!writeRequested.get() && writerLock.tryLock()) {
+            // אין כתיבה ממתינה בסלקטור: כותבים מיד מהת'רד השולח (non-blocking), בלי wakeup
+            boolean open;
+            try {
+                open = writeSome();
+            } finally {
+                writerLock.unlock();
+            }
+            if (!open || (outbound.isEmpty() && !outbound.isClosing() && !shouldTerminate())) {
+                return;
+            }
+        }
+        requestWrite();
+    }
+
+    // מבקשים OP_WRITE רק פעם אחת עד שהתור מתרוקן, כך שפרץ הודעות לא שולח בקשה (ו-wakeup) לכל הודעה
+    private void requestWrite() {
+        if (writeRequested.compareAndSet(false, true)) {
+            loop.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * @return how many frames to this client were dropped because its outbound queue was full
+     */
+    public long droppedFrames() {
+        return outbound.droppedFrames();
+    }
+
     public StompMessagingProtocol<T> getStompProtocol() {
         return stompProtocol;
     }
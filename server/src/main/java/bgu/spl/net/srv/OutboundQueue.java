@@ -0,0 +1,396 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The frames waiting to be written to one client, bounded in frames and in bytes.
+ * Any thread may offer frames; only the connection's writer gathers and removes them.
+ * When a slow client lets the queue fill up, the configured {@link Policy} decides what happens.
+ *
+ * Frames handed to the writer by {@link #gather} are "in flight": they may already be partially
+ * written, so they are never dropped, only frames still pending behind them. A {@link FrameSource}
+ * is never dropped by the policies either (that would silently cut a replay short): it is queued
+ * regardless of the limits, its frames are counted as the writer pulls them, and it is only
+ * discarded when the connection is aborted.
+ */
+class OutboundQueue {
+
+    // הודעה בתור, עם הגודל שלה בזמן ההכנסה (אחרי הכתיבה החלקים כבר ריקים)
+    private static final class Entry {
+        final ByteBuffer[] parts;
+        final long size;
+        // מקור של הודעות שנוצרות רק כשהכותב מגיע אליו (parts הוא null); נחשב הודעה אחת בגודל 0
+        final FrameSource source;
+        // הודעה שכבר נלקחה מה-source ולא נכנסה ב-gather הקודם
+        ByteBuffer[] ahead;
+
+        Entry(ByteBuffer[] parts) {
+            this.parts = parts;
+            this.size = sizeOf(parts);
+            this.source = null;
+        }
+
+        Entry(FrameSource source) {
+            this.parts = null;
+            this.size = 0;
+            this.source = source;
+        }
+    }
+
+    enum Policy {
+        /** drop the oldest frames that were not handed to the writer yet (never a {@link FrameSource}) */
+        DROP_OLDEST,
+        /** drop the frame being offered */
+        DROP_NEWEST,
+        /** discard everything pending, send a last frame (e.g. ERROR) and close the connection */
+        DISCONNECT;
+
+        static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    static final int DEFAULT_MAX_FRAMES = Integer.getInteger("stomp.outbound.max.frames", 10000);
+    static final long DEFAULT_MAX_BYTES = Long.getLong("stomp.outbound.max.bytes", 16L << 20);
+    static final Policy DEFAULT_POLICY = Policy.parse(System.getProperty("stomp.outbound.policy", "disconnect"));
+
+    // מונים לכל השרת
+    private static final AtomicLong TOTAL_DROPPED_FRAMES = new AtomicLong();
+    private static final AtomicLong TOTAL_OVERFLOW_DISCONNECTS = new AtomicLong();
+
+    private final int maxFrames;
+    private final long maxBytes;
+    private final Policy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // לכותב שממתין להודעות (ת'רד כתיבה של חיבור חוסם)
+    private final Condition notEmpty = lock.newCondition();
+    // הודעות שעוד לא נמסרו לכותב - רק מהן מותר לזרוק
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    // הודעות שנמסרו לכותב (אולי נכתבו בחלקן); נגיש רק לכותב
+    private final ArrayDeque<Entry> inFlight = new ArrayDeque<>();
+    private int frames;
+    private long bytes;
+    private boolean closing;
+    private boolean overflowed;
+    private long droppedFrames;
+    private boolean reported;
+
+    OutboundQueue() {
+        this(DEFAULT_MAX_FRAMES, DEFAULT_MAX_BYTES, DEFAULT_POLICY);
+    }
+
+    OutboundQueue(int maxFrames, long maxBytes, Policy policy) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a frame, applying the policy if the queue is full.
+     * @return false if the queue overflowed under {@link Policy#DISCONNECT}: the caller must then
+     *         call {@link #abort} and make sure the connection is closed
+     */
+    boolean offer(ByteBuffer[] frame) {
+        return offer(new Entry(frame));
+    }
+
+    /**
+     * Queues the frames of a source; the writer pulls them one by one when it gets to the source,
+     * so they are not counted against the limits until then, and the source is queued even when
+     * the queue is full.
+     * @return true
+     */
+    boolean offer(FrameSource source) {
+        return offer(new Entry(source));
+    }
+
+    private boolean offer(Entry entry) {
+        long size = entry.size;
+        lock.lock();
+        try {
+            if (closing) {
+                dropped(discard(entry));
+                return true;
+            }
+            if (entry.source == null && (frames + 1 > maxFrames || bytes + size > maxBytes)) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        dropped(1);
+                        return true;
+                    case DROP_OLDEST:
+                        // זורקים מהישנות, ומדלגים על sources (אולי כבר התחילו להישלח)
+                        Iterator<Entry> oldestFirst = pending.iterator();
+                        while ((frames + 1 > maxFrames || bytes + size > maxBytes) && oldestFirst.hasNext()) {
+                            Entry oldest = oldestFirst.next();
+                            if (oldest.source != null) {
+                                continue;
+                            }
+                            oldestFirst.remove();
+                            frames--;
+                            bytes -= oldest.size;
+                            dropped(1);
+                        }
+                        if (frames + 1 > maxFrames || bytes + size > maxBytes) {
+                            // כל מה שבתור כבר בכתיבה - זורקים את החדשה
+                            dropped(1);
+                            return true;
+                        }
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            pending.add(entry);
+            frames++;
+            bytes += size;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards every pending frame (pulling what is left of pending sources, to count the frames
+     * that will not be sent), queues last (if not null) regardless of the limits and
+     * rejects anything offered afterwards. Once the writer drains the queue, {@link #isClosing}
+     * tells it to close the connection.
+     */
+    void abort(ByteBuffer[] last) {
+        lock.lock();
+        try {
+            if (closing) {
+                return;
+            }
+            closing = true;
+            overflowed = true;
+            TOTAL_OVERFLOW_DISCONNECTS.incrementAndGet();
+            for (Entry entry : pending) {
+                bytes -= entry.size;
+                dropped(discard(entry));
+            }
+            frames -= pending.size();
+            pending.clear();
+            if (last != null) {
+                Entry entry = new Entry(last);
+                pending.add(entry);
+                frames++;
+                bytes += entry.size;
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rejects anything offered from now on but keeps what is queued, so the writer can send it
+     * (e.g. the RECEIPT of a DISCONNECT) before closing the connection.
+     */
+    void finish() {
+        lock.lock();
+        try {
+            closing = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writer side, for a writer thread of its own: waits until there is something to write.
+     * @param timeoutNanos how long to wait for a frame
+     * @return false once the queue is closing and everything queued was written, or if no frame
+     *         came within the timeout
+     */
+    boolean awaitFrames(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long left = timeoutNanos;
+            while (frames == 0 && !closing) {
+                if (left <= 0) {
+                    return false;
+                }
+                left = notEmpty.awaitNanos(left);
+            }
+            return frames > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writer side: fills into with the parts of the frames to write next, taking more pending
+     * frames until maxBytes or the array is reached.
+     * @return the number of parts put in into
+     */
+    int gather(ByteBuffer[] into, long maxBytes) {
+        int count = 0;
+        long total = 0;
+        for (Entry entry : inFlight) {
+            if (count + entry.parts.length > into.length) {
+                return count;
+            }
+            for (ByteBuffer part : entry.parts) {
+                into[count++] = part;
+                total += part.remaining();
+            }
+        }
+        lock.lock();
+        try {
+            Entry next;
+            while ((next = pending.peek()) != null && (count == 0 || total < maxBytes)) {
+                if (next.source != null) {
+                    // מושכים מה-source הודעה אחת בכל פעם; כל הודעה שנמשכה נכנסת לבד ל-inFlight
+                    ByteBuffer[] frame = next.ahead != null ? next.ahead : next.source.next();
+                    next.ahead = null;
+                    if (frame == null) {
+                        pending.poll();
+                        frames--;
+                        continue;
+                    }
+                    if (count + frame.length > into.length) {
+                        next.ahead = frame;
+                        break;
+                    }
+                    next = new Entry(frame);
+                    frames++;
+                    bytes += next.size;
+                } else if (count + next.parts.length <= into.length) {
+                    pending.poll();
+                } else {
+                    break;
+                }
+                inFlight.add(next);
+                for (ByteBuffer part : next.parts) {
+                    into[count++] = part;
+                    total += part.remaining();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return count;
+    }
+
+    /**
+     * Writer side: forgets the frames that were completely written.
+     * @return true if some frame is still partially written or waiting
+     */
+    boolean removeWritten() {
+        int removed = 0;
+        long removedBytes = 0;
+        Entry top;
+        while ((top = inFlight.peek()) != null && isWritten(top.parts)) {
+            inFlight.poll();
+            removed++;
+            removedBytes += top.size;
+        }
+        lock.lock();
+        try {
+            frames -= removed;
+            bytes -= removedBytes;
+            return frames > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosing() {
+        lock.lock();
+        try {
+            return closing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long droppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Once the connection is closed: reports on System.err if frames to this client were dropped
+     * or it was disconnected for overflowing the queue. Only the first call reports.
+     * @param client names the client in the report (e.g. its address)
+     */
+    void reportDrops(Object client) {
+        lock.lock();
+        try {
+            if (reported || (droppedFrames == 0 && !overflowed)) {
+                return;
+            }
+            reported = true;
+        } finally {
+            lock.unlock();
+        }
+        System.err.println((overflowed ? "Disconnected slow client " + client + ": too many frames were waiting"
+                                       : "Slow client " + client)
+                + ", dropped " + droppedFrames() + " frames to it (since startup: " + totalDroppedFrames()
+                + " dropped frames, " + totalOverflowDisconnects() + " overflow disconnects)");
+    }
+
+    static long totalDroppedFrames() {
+        return TOTAL_DROPPED_FRAMES.get();
+    }
+
+    static long totalOverflowDisconnects() {
+        return TOTAL_OVERFLOW_DISCONNECTS.get();
+    }
+
+    private void dropped(long count) {
+        droppedFrames += count;
+        TOTAL_DROPPED_FRAMES.addAndGet(count);
+    }
+
+    // כמה הודעות הולכות לאיבוד עם הרשומה; source נמשך עד הסוף כדי לספור את מה שלא יישלח ממנו
+    private static long discard(Entry entry) {
+        if (entry.source == null) {
+            return 1;
+        }
+        long count = entry.ahead != null ? 1 : 0;
+        entry.ahead = null;
+        while (entry.source.next() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean isWritten(ByteBuffer[] frame) {
+        for (ByteBuffer part : frame) {
+            if (part.hasRemaining()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long sizeOf(ByteBuffer[] frame) {
+        long size = 0;
+        for (ByteBuffer part : frame) {
+            size += part.remaining();
+        }
+        return size;
+    }
+}
@@ -10,11 +10,13 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
 
+    // כל כמה זמן להדפיס את מצב ה-BufferPool ל-stderr, וגם בסגירה (0 = לא מדפיסים)
+    private static final long POOL_STATS_MILLIS = Long.getLong("buffer.pool.stats.ms", 0);
+
     private final int port;
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
@@ -24,10 +26,11 @@ public class Reactor<T> implements Server<T> {
     private int idCounter = 0;
 
     private final ActorThreadPool pool;
-    private Selector selector;
-
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    // מספר לולאות ה-I/O; 1 = סלקטור יחיד שגם מקבל חיבורים, אחרת acceptor + N לולאות
+    private final int ioLoops;
+    private SelectorLoop acceptor;
+    private SelectorLoop[] loops;
+    private int nextLoop = 0;
 
     public Reactor(
             int numThreads,
@@ -36,6 +39,7 @@ public class Reactor<T> implements Server<T> {
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
 
         this.pool = new ActorThreadPool(numThreads);
+        this.ioLoops = 1;
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
@@ -49,77 +53,93 @@ public class Reactor<T> implements Server<T> {
             Supplier<StompMessagingProtocol<T>> stompFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory,
             boolean isStomp) {
+        this(numThreads, 1, port, stompFactory, readerFactory, isStomp);
+    }
+
+    // STOMP עם כמה לולאות I/O: acceptor אחד ו-ioLoops סלקטורים, כל אחד בת'רד משלו
+    public Reactor(
+            int numThreads,
+            int ioLoops,
+            int port,
+            Supplier<StompMessagingProtocol<T>> stompFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            boolean isStomp) {
 
         this.pool = new ActorThreadPool(numThreads);
+        this.ioLoops = Math.max(1, ioLoops);
         this.port = port;
         this.protocolFactory = null;
         this.stompFactory = stompFactory;
         this.readerFactory = readerFactory;
         
         // יצירת המרכזייה
-        this.connections = new ConnectionsImpl<>();
+        this.connections = new ConnectionsImpl<>(readerFactory.get());
     }
 
     @Override
     public void serve() {
-	selectorThread = Thread.currentThread();
         try (Selector selector = Selector.open();
                 ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
-            this.selector = selector; //just to be able to close
+            acceptor = new SelectorLoop(this, selector); //just to be able to close
+            if (ioLoops > 1) {
+                loops = new SelectorLoop[ioLoops];
+                for (int i = 0; i < ioLoops; i++) {
+                    loops[i] = new SelectorLoop(this, Selector.open());
+                    new Thread(loops[i], "reactor-io-" + i).start();
+                }
+            }
 
             serverSock.bind(new InetSocketAddress(port));
             serverSock.configureBlocking(false);
             serverSock.register(selector, SelectionKey.OP_ACCEPT);
 			System.out.println("Server started");
+            startPoolStats();
 
-            while (!Thread.currentThread().isInterrupted()) {
-
-                selector.select();
-                runSelectionThreadTasks();
-
-                for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
-                }
-
-                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
-
-            }
+            acceptor.run();
 
         } catch (ClosedSelectorException ex) {
             //do nothing - server was requested to be closed
         } catch (IOException ex) {
             //this is an error
             ex.printStackTrace();
+        } finally {
+            closeLoops();
         }
 
         System.out.println("server closed!!!");
+        if (POOL_STATS_MILLIS > 0) {
+            System.err.println(BufferPool.shared());
+        }
         pool.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
+    private static void startPoolStats() {
+        if (POOL_STATS_MILLIS <= 0) {
+            return;
         }
+        Thread stats = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(POOL_STATS_MILLIS);
+                    System.err.println(BufferPool.shared());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "buffer-pool-stats");
+        stats.setDaemon(true);
+        stats.start();
     }
 
-
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
+    /*package*/ void handleAccept(ServerSocketChannel serverChan, SelectorLoop acceptingLoop) throws IOException {
         SocketChannel clientChan = serverChan.accept();
+        if (clientChan == null) {
+            return;
+        }
         clientChan.configureBlocking(false);
+        // חלוקת החיבורים בין הלולאות בסבב (round-robin)
+        SelectorLoop loop = loops == null ? acceptingLoop : loops[Math.floorMod(nextLoop++, loops.length)];
          NonBlockingConnectionHandler<T> handler; 
          if (stompFactory != null) {
             // --- לוגיקה של STOMP ---
@@ -131,7 +151,7 @@ public class Reactor<T> implements Server<T> {
                     readerFactory.get(),
                     protocol,
                     clientChan,
-                    this);
+                    loop);
             
             int connectionId = idCounter++; // יצירת ID ייחודי
             
@@ -145,20 +165,20 @@ public class Reactor<T> implements Server<T> {
                 readerFactory.get(),
                 protocolFactory.get(),
                 clientChan,
-                this);
+                loop);
             }
             
-            clientChan.register(selector, SelectionKey.OP_READ, handler);
+            loop.register(clientChan, handler);
     }
 
-    private void handleReadWrite(SelectionKey key) {
+    /*package*/ void handleReadWrite(SelectionKey key) {
         @SuppressWarnings("unchecked")
         NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
 
         if (key.isReadable()) {
             Runnable task = handler.continueRead();
             if (task != null) {
-                pool.submit(handler, task);
+                pool.submit(handler.mailbox(), task);
             }
         }
 
@@ -167,15 +187,26 @@ public class Reactor<T> implements Server<T> {
         }
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    /*package*/ void submit(ActorMailbox mailbox, Runnable task) {
+        pool.submit(mailbox, task);
+    }
+
+    private void closeLoops() {
+        if (loops == null) {
+            return;
+        }
+        for (SelectorLoop loop : loops) {
+            try {
+                loop.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         }
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        acceptor.close();
     }
 
 }
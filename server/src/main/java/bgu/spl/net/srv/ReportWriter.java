@@ -0,0 +1,68 @@
+package bgu.spl.net.srv;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes the server report (registered users, login history, uploaded files) row by row as
+ * {@link Storage#scan} delivers it, so a report of millions of rows needs no more memory than
+ * one page of them. Fields are separated by a space and a missing value is written as None.
+ */
+public class ReportWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Storage storage;
+    private final int pageSize;
+
+    public ReportWriter(Storage storage, int pageSize) {
+        this.storage = storage;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Writes the report to the stream and flushes it; the stream is left open.
+     */
+    public void write(OutputStream out) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        write(writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes the report to the file, replacing it if it exists.
+     */
+    public void write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            write(writer);
+        }
+    }
+
+    private void write(BufferedWriter out) throws IOException {
+        out.write("--- Server Data Report ---");
+        out.newLine();
+        for (Storage.Table table : Storage.Table.values()) {
+            out.newLine();
+            out.write("[" + table.title() + "]:");
+            out.newLine();
+            storage.scan(table, pageSize, row -> writeRow(out, row));
+        }
+        out.write("--------------------------");
+        out.newLine();
+    }
+
+    private static void writeRow(BufferedWriter out, String[] row) throws IOException {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                out.write(' ');
+            }
+            out.write(row[i] == null ? "None" : row[i]);
+        }
+        out.newLine();
+    }
+}
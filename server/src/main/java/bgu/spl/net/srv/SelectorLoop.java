@@ -0,0 +1,123 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One I/O event loop of the {@link Reactor}: a Selector, the thread that runs it and the queue of
+ * tasks other threads ask it to run. Every channel registered here has its interest ops changed
+ * only by this loop's thread.
+ */
+class SelectorLoop implements Runnable {
+
+    private final Reactor<?> reactor;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread selectorThread;
+    // wakeup אחד לכל סבב של הלולאה, גם אם הרבה ת'רדים מוסיפים משימות באותו זמן
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    SelectorLoop(Reactor<?> reactor, Selector selector) {
+        this.reactor = reactor;
+        this.selector = selector;
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select();
+                wakeupPending.set(false);
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        reactor.handleAccept((ServerSocketChannel) key.channel(), this);
+                    } else {
+                        reactor.handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+
+            }
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Registers a freshly accepted channel with this loop's selector, from any thread.
+     */
+    void register(SocketChannel chan, NonBlockingConnectionHandler<?> handler) {
+        execute(() -> {
+            try {
+                chan.register(selector, SelectionKey.OP_READ, handler);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                handler.close();
+            }
+        });
+    }
+
+    void updateInterestedOps(SocketChannel chan, int ops) {
+        execute(() -> {
+            SelectionKey key = chan.keyFor(selector);
+            try {
+                if (key != null) {
+                    key.interestOps(ops);
+                }
+            } catch (CancelledKeyException ex) {
+                //the channel was closed in the meantime
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the actor pool after every task already queued in the mailbox.
+     */
+    void submit(ActorMailbox mailbox, Runnable task) {
+        reactor.submit(mailbox, task);
+    }
+
+    void close() throws IOException {
+        selector.close();
+    }
+
+    // runs the task right away on the loop's own thread, otherwise queues it and wakes the selector
+    private void execute(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        } else {
+            selectorTasks.add(task);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+}
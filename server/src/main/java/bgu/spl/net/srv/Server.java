@@ -4,6 +4,8 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.api.StompMessagingProtocol;
 import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Supplier;
 
 public interface Server<T> extends Closeable {
@@ -68,6 +70,34 @@ public interface Server<T> extends Closeable {
         };
     }
 
+    /**
+     * A STOMP thread per client server that runs every client on its own virtual thread,
+     * so idle clients cost a few KB of heap instead of a platform thread and its stack.
+     * Falls back to platform threads on JVMs without virtual threads.
+     */
+    public static <T> Server<T> threadPerClientVirtual(
+            int port,
+            Supplier<StompMessagingProtocol<T>> stompFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+        boolean isStomp) {
+
+        ExecutorService clients = VirtualThreads.newPerTaskExecutor();
+        return new BaseServer<T>(port, stompFactory, encoderDecoderFactory, true) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T> handler) {
+                // גם ת'רד הכתיבה של הלקוח וירטואלי
+                handler.setWriterExecutor(clients);
+                clients.execute(handler);
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                clients.shutdownNow();
+            }
+        };
+    }
+
     public static <T> Server<T> reactor(
             int numThreads,
             int port,
@@ -79,4 +109,20 @@ public interface Server<T> extends Closeable {
         return new Reactor<>(numThreads, port, stompFactory, encoderDecoderFactory, true);
     }
 
+    /**
+     * A STOMP reactor with one acceptor and several I/O event loops
+     * @param numThreads Number of threads available for protocol processing
+     * @param ioLoops Number of selector threads the connections are spread over (round-robin)
+     */
+    public static <T> Server<T> reactor(
+            int numThreads,
+            int ioLoops,
+            int port,
+            Supplier<StompMessagingProtocol<T>> stompFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+        boolean isStomp) {
+
+        return new Reactor<>(numThreads, ioLoops, port, stompFactory, encoderDecoderFactory, true);
+    }
+
 }
@@ -0,0 +1,320 @@
+package bgu.spl.net.srv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of long-lived sockets to the SQL sidecar (data/sql_server.py). Requests are
+ * prepared statements ({@link SqlStatement}) sent in length-prefixed binary frames, and one socket
+ * serves any number of them.
+ */
+public class SqlConnectionPool implements Closeable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    // חיבור שהיה בשימוש בזמן הזה נחשב תקין בלי לבדוק אותו לפני כתיבה שאסור לחזור עליה
+    private static final long CHECK_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("sql.pool.check.idle.ms", 1000));
+
+    // בקשות בינאריות (משפטים מוכנים עם פרמטרים) - הפורמט מתואר ב-data/sql_server.py
+    private static final int BINARY = 0x02;
+    private static final byte OP_PREPARE = 'P';
+    private static final byte OP_QUERY = 'Q';
+    private static final byte OP_EXECUTE = 'E';
+    private static final byte OP_BATCH = 'B';
+
+    /** the most statements {@link #batch} can send in one request (the count is an unsigned short) */
+    public static final int MAX_BATCH = 0xFFFF;
+
+    private final String host;
+    private final int port;
+    private final Semaphore permits;
+    private final BlockingQueue<PooledConnection> idle;
+    private volatile boolean closed = false;
+
+    public SqlConnectionPool(String host, int port, int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+        }
+        this.host = host;
+        this.port = port;
+        this.permits = new Semaphore(maxConnections, true);
+        this.idle = new ArrayBlockingQueue<>(maxConnections);
+    }
+
+    /**
+     * Runs a prepared SELECT.
+     * @return the result rows, each an array of column values (null for SQL NULL)
+     */
+    public List<String[]> query(SqlStatement.Call call) throws IOException {
+        return readRows(withConnection(true, conn -> conn.call(OP_QUERY, call)));
+    }
+
+    /**
+     * Runs a prepared INSERT/UPDATE.
+     */
+    public void update(SqlStatement.Call call) throws IOException {
+        readRows(withConnection(false, conn -> conn.call(OP_EXECUTE, call)));
+    }
+
+    /**
+     * Runs prepared INSERT/UPDATE statements in one transaction on the sidecar.
+     * @throws IllegalArgumentException if there are more than {@link #MAX_BATCH} statements
+     */
+    public void batch(List<SqlStatement.Call> calls) throws IOException {
+        if (calls.size() > MAX_BATCH) {
+            throw new IllegalArgumentException("a batch holds at most " + MAX_BATCH + " statements: " + calls.size());
+        }
+        readRows(withConnection(false, conn -> conn.batch(calls)));
+    }
+
+    private interface Request<R> {
+        R send(PooledConnection conn) throws IOException;
+    }
+
+    /**
+     * Sends one request over a pooled connection and waits for its response.
+     * A connection that fails mid-request is thrown away. If it was a reused one (the sidecar may
+     * have dropped it while idle) an idempotent request is retried once on a fresh socket. Any other
+     * request may already have run on the sidecar, so it is never sent twice: instead a reused
+     * connection that was idle for a while is checked (without blocking) before the request is
+     * written, and replaced if the sidecar closed it.
+     * @param idempotent whether running the request twice is harmless (a SELECT)
+     */
+    private <R> R withConnection(boolean idempotent, Request<R> request) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a SQL connection", e);
+        }
+
+        PooledConnection conn = null;
+        boolean returned = false;
+        try {
+            conn = idle.poll();
+            boolean reused = conn != null;
+            if (reused && !idempotent && conn.isStale()) {
+                conn.close();
+                reused = false;
+            }
+            if (!reused) {
+                conn = open();
+            }
+
+            R response;
+            try {
+                response = request.send(conn);
+            } catch (IOException e) {
+                conn.close();
+                if (!reused || !idempotent) {
+                    throw e;
+                }
+                conn = open();
+                response = request.send(conn);
+            }
+
+            returned = !closed && idle.offer(conn);
+            return response;
+        } finally {
+            // כל כישלון (גם RuntimeException) סוגר את החיבור: אולי נשארה עליו תשובה שלא נקראה
+            if (conn != null && !returned) {
+                conn.close();
+            }
+            permits.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection conn;
+        while ((conn = idle.poll()) != null) {
+            conn.close();
+        }
+    }
+
+    private PooledConnection open() throws IOException {
+        if (closed) {
+            throw new IOException("SQL connection pool is closed");
+        }
+        // דרך SocketChannel, כדי שאפשר יהיה לבדוק את החיבור בקריאה לא חוסמת
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            return new PooledConnection(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // מפענח תשובה בינארית: סטטוס, ואז שורות או הודעת שגיאה
+    private static List<String[]> readRows(byte[] response) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+        if (in.readUnsignedByte() != 0) {
+            throw new IOException(readText(in));
+        }
+        int rows = in.readInt();
+        int columns = in.readUnsignedShort();
+        List<String[]> result = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r++) {
+            String[] row = new String[columns];
+            for (int c = 0; c < columns; c++) {
+                row[c] = in.readUnsignedByte() == 0 ? null : readText(in);
+            }
+            result.add(row);
+        }
+        return result;
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class PooledConnection {
+        private final SocketChannel channel;
+        private final BufferedInputStream in;
+        private final BufferedOutputStream out;
+        // המשפטים שכבר הוכנו על החיבור הזה (צד הפייתון שומר אותם לכל חיבור)
+        private final BitSet prepared = new BitSet();
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        private final DataOutputStream request = new DataOutputStream(payload);
+
+        private final ByteBuffer probe = ByteBuffer.allocate(1);
+        // מתי הסתיימה הבקשה האחרונה
+        private long lastUsed = System.nanoTime();
+
+        PooledConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.in = new BufferedInputStream(channel.socket().getInputStream());
+            this.out = new BufferedOutputStream(channel.socket().getOutputStream());
+        }
+
+        byte[] call(byte op, SqlStatement.Call call) throws IOException {
+            prepare(call.statement());
+            payload.reset();
+            request.writeByte(op);
+            call.writeTo(request);
+            return binaryRoundTrip();
+        }
+
+        byte[] batch(List<SqlStatement.Call> calls) throws IOException {
+            for (SqlStatement.Call call : calls) {
+                prepare(call.statement());
+            }
+            payload.reset();
+            request.writeByte(OP_BATCH);
+            request.writeShort(calls.size());
+            for (SqlStatement.Call call : calls) {
+                call.writeTo(request);
+            }
+            return binaryRoundTrip();
+        }
+
+        private void prepare(SqlStatement statement) throws IOException {
+            if (prepared.get(statement.id())) {
+                return;
+            }
+            payload.reset();
+            request.writeByte(OP_PREPARE);
+            request.writeShort(statement.id());
+            SqlStatement.writeText(request, statement.sql());
+            readRows(binaryRoundTrip());
+            prepared.set(statement.id());
+        }
+
+        // 0x02, אורך, ואז התוכן - בבקשה ובתשובה
+        private byte[] binaryRoundTrip() throws IOException {
+            out.write(BINARY);
+            writeInt(payload.size());
+            payload.writeTo(out);
+            out.flush();
+
+            if (in.read() != BINARY) {
+                throw new IOException("unexpected response from the SQL server");
+            }
+            byte[] body = new byte[readInt()];
+            int read = 0;
+            while (read < body.length) {
+                int n = in.read(body, read, body.length - read);
+                if (n < 0) {
+                    throw new EOFException("SQL server closed the connection");
+                }
+                read += n;
+            }
+            lastUsed = System.nanoTime();
+            return body;
+        }
+
+        private void writeInt(int value) throws IOException {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        private int readInt() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("SQL server closed the connection");
+                }
+                value = (value << 8) | b;
+            }
+            return value;
+        }
+
+        // האם הפייתון סגר את החיבור בזמן שחיכה בתור (או שנשארו בו בתים שלא שייכים לאף בקשה).
+        // חיבור שהיה בשימוש ממש עכשיו לא נבדק; אחרת קריאה לא חוסמת: חיבור תקין לא מחזיר כלום
+        boolean isStale() {
+            if (System.nanoTime() - lastUsed < CHECK_IDLE_NANOS) {
+                return false;
+            }
+            try {
+                if (in.available() > 0) {
+                    return true;
+                }
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(probe) != 0;
+                } finally {
+                    probe.clear();
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link Storage} backed by the Python SQL sidecar (data/sql_server.py) over a pool of
+ * long-lived sockets. Every value is sent as a parameter of a prepared {@link SqlStatement}.
+ */
+public class SqlSidecarStorage implements Storage {
+
+    private static final SqlStatement SELECT_USERS = new SqlStatement(
+            "SELECT username, password FROM Users");
+    private static final SqlStatement SELECT_PASSWORD = new SqlStatement(
+            "SELECT password FROM Users WHERE username = ?");
+    private static final SqlStatement INSERT_USER = new SqlStatement(
+            "INSERT INTO Users (username, password) VALUES (?, ?)");
+    private static final SqlStatement INSERT_LOGIN = new SqlStatement(
+            "INSERT INTO Login_History (username, login_time) VALUES (?, ?)");
+    // היציאה סוגרת את הכניסה האחרונה של המשתמש
+    private static final SqlStatement UPDATE_LOGOUT = new SqlStatement(
+            "UPDATE Login_History SET logout_time = ? WHERE id = "
+            + "(SELECT MAX(id) FROM Login_History WHERE username = ?)");
+    private static final SqlStatement INSERT_UPLOAD = new SqlStatement(
+            "INSERT INTO Uploaded_Files (username, filename, upload_time) VALUES (?, ?, ?)");
+
+    // דפדוף לפי rowid (keyset): כל עמוד ממשיך אחרי ה-rowid האחרון שהתקבל, בלי OFFSET שסורק מחדש
+    private static final Map<Table, SqlStatement> PAGES = new EnumMap<>(Table.class);
+    static {
+        PAGES.put(Table.USERS, page("username", "Users"));
+        PAGES.put(Table.LOGIN_HISTORY, page("username, login_time, logout_time", "Login_History"));
+        PAGES.put(Table.UPLOADED_FILES, page("username, filename, upload_time", "Uploaded_Files"));
+    }
+
+    private static SqlStatement page(String columns, String table) {
+        return new SqlStatement("SELECT rowid, " + columns + " FROM " + table
+                + " WHERE rowid > CAST(? AS INTEGER) ORDER BY rowid LIMIT CAST(? AS INTEGER)");
+    }
+
+    private final SqlConnectionPool pool;
+
+    public SqlSidecarStorage(String host, int port, int poolSize) {
+        this.pool = new SqlConnectionPool(host, port, poolSize);
+    }
+
+    @Override
+    public Map<String, String> loadUsers() throws IOException {
+        Map<String, String> users = new HashMap<>();
+        for (String[] row : pool.query(SELECT_USERS.bind())) {
+            users.putIfAbsent(row[0], row[1]);
+        }
+        return users;
+    }
+
+    @Override
+    public String findPassword(String username) throws IOException {
+        List<String[]> rows = pool.query(SELECT_PASSWORD.bind(username));
+        return rows.isEmpty() ? null : rows.get(0)[0];
+    }
+
+    @Override
+    public void addUser(String username, String password) throws IOException {
+        pool.update(INSERT_USER.bind(username, password));
+    }
+
+    // כל המנה נשלחת כבקשה אחת ומתבצעת בטרנזקציה אחת בצד של הפייתון
+    @Override
+    public void writeAudit(List<AuditRecord> batch) throws IOException {
+        List<SqlStatement.Call> calls = new ArrayList<>(batch.size());
+        for (AuditRecord record : batch) {
+            calls.add(toCall(record));
+        }
+        pool.batch(calls);
+    }
+
+    private static SqlStatement.Call toCall(AuditRecord record) {
+        switch (record.getType()) {
+            case LOGIN:
+                return INSERT_LOGIN.bind(record.getUsername(), record.getTime());
+            case LOGOUT:
+                return UPDATE_LOGOUT.bind(record.getTime(), record.getUsername());
+            default:
+                return INSERT_UPLOAD.bind(record.getUsername(), record.getFileName(), record.getTime());
+        }
+    }
+
+    @Override
+    public void scan(Table table, int pageSize, RowConsumer consumer) throws IOException {
+        SqlStatement statement = PAGES.get(table);
+        String limit = Integer.toString(pageSize);
+        long after = 0;
+        List<String[]> page;
+        do {
+            page = pool.query(statement.bind(Long.toString(after), limit));
+            for (String[] row : page) {
+                after = Long.parseLong(row[0]);
+                consumer.accept(Arrays.copyOfRange(row, 1, row.length));
+            }
+        } while (page.size() == pageSize);
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
@@ -0,0 +1,79 @@
+package bgu.spl.net.srv;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A SQL statement with ? placeholders for the SQL sidecar. It is prepared once on each pooled
+ * connection that runs it; after that only its id and the bound parameters are sent, so values are
+ * never spliced into SQL text and the sidecar does not parse the statement again.
+ */
+public final class SqlStatement {
+
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    private final int id;
+    private final String sql;
+
+    public SqlStatement(String sql) {
+        this.id = IDS.incrementAndGet();
+        if (id > 0xFFFF) {
+            throw new IllegalStateException("too many SQL statements");
+        }
+        this.sql = sql;
+    }
+
+    int id() {
+        return id;
+    }
+
+    String sql() {
+        return sql;
+    }
+
+    /**
+     * @return this statement with values for its placeholders, in order (null for SQL NULL)
+     */
+    public Call bind(String... params) {
+        return new Call(this, params);
+    }
+
+    /**
+     * A statement together with its parameters, ready to be sent.
+     */
+    public static final class Call {
+        private final SqlStatement statement;
+        private final String[] params;
+
+        private Call(SqlStatement statement, String[] params) {
+            this.statement = statement;
+            this.params = params;
+        }
+
+        SqlStatement statement() {
+            return statement;
+        }
+
+        // u16 id, u16 count, then every value as 0x00 (NULL) or 0x01 + u32 length + UTF-8
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeShort(statement.id);
+            out.writeShort(params.length);
+            for (String param : params) {
+                if (param == null) {
+                    out.writeByte(0);
+                } else {
+                    out.writeByte(1);
+                    writeText(out, param);
+                }
+            }
+        }
+    }
+
+    static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
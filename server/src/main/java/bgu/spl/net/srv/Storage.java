@@ -0,0 +1,73 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the server persists its data: the registered users and the audit trail
+ * (logins, logouts and file uploads). {@link DatabaseService} picks the backend once at startup
+ * from the {@code stomp.storage} system property: {@code sql} (the default) for the Python SQL
+ * sidecar, or {@code journal} for the in-process {@link JournalStorage}.
+ */
+public interface Storage {
+
+    /**
+     * The tables of the report, with the columns {@link #scan} returns for each.
+     */
+    enum Table {
+        // username
+        USERS("Registered Users"),
+        // username, login_time, logout_time
+        LOGIN_HISTORY("Login History"),
+        // username, filename, upload_time
+        UPLOADED_FILES("Uploaded Files");
+
+        private final String title;
+
+        Table(String title) {
+            this.title = title;
+        }
+
+        public String title() {
+            return title;
+        }
+    }
+
+    /**
+     * Receives the rows of a {@link #scan}, one at a time.
+     */
+    interface RowConsumer {
+        void accept(String[] row) throws IOException;
+    }
+
+    /**
+     * @return every registered user, username to password
+     */
+    Map<String, String> loadUsers() throws IOException;
+
+    /**
+     * @return the password of the user, or null if no such user is stored
+     */
+    String findPassword(String username) throws IOException;
+
+    void addUser(String username, String password) throws IOException;
+
+    /**
+     * Persists the records, in order, as one unit where the backend supports it.
+     * A logout closes the latest login of the same user.
+     */
+    void writeAudit(List<AuditRecord> batch) throws IOException;
+
+    /**
+     * Hands every row of the table to the consumer in insertion order, reading at most pageSize
+     * rows at a time, so the memory used does not depend on the size of the table.
+     * Null values are passed as null.
+     */
+    void scan(Table table, int pageSize, RowConsumer consumer) throws IOException;
+
+    /**
+     * Releases the backend's resources; called once, after the last write.
+     */
+    void close();
+}
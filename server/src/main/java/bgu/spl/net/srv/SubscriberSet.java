@@ -0,0 +1,116 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The subscriptions to one channel, kept as a copy-on-write array. A subscription is identified by
+ * its connection and the subscription id the client chose, so one connection may subscribe to the
+ * same channel more than once (each copy of a message carries its own subscription header).
+ *
+ * Broadcasting only reads the current array (no hashing, no boxing, no handler lookup),
+ * while the rare subscribe/unsubscribe copies it under the set's lock.
+ */
+class SubscriberSet<T> {
+
+    static final class Subscriber<T> {
+        final int connectionId;
+        final String subscriptionId;
+        final ConnectionHandler<T> handler;
+        // החלק האישי של המנוי בכותרת ההודעה, מקודד מראש
+        final ByteBuffer header;
+
+        Subscriber(int connectionId, String subscriptionId, ConnectionHandler<T> handler, ByteBuffer header) {
+            this.connectionId = connectionId;
+            this.subscriptionId = subscriptionId;
+            this.handler = handler;
+            this.header = header;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final Subscriber[] EMPTY = new Subscriber[0];
+
+    @SuppressWarnings("unchecked")
+    private volatile Subscriber<T>[] subscribers = EMPTY;
+
+    /**
+     * @return an empty subscriber array
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Subscriber<T>[] none() {
+        return EMPTY;
+    }
+
+    /**
+     * @return the current subscribers; the array is never modified and must not be modified by the caller
+     */
+    Subscriber<T>[] snapshot() {
+        return subscribers;
+    }
+
+    boolean isEmpty() {
+        return subscribers.length == 0;
+    }
+
+    /**
+     * Adds the subscription, or replaces its entry if the connection already has one with this id.
+     */
+    synchronized void add(int connectionId, String subscriptionId, ConnectionHandler<T> handler, ByteBuffer header) {
+        Subscriber<T>[] current = subscribers;
+        Subscriber<T> subscriber = new Subscriber<>(connectionId, subscriptionId, handler, header);
+        int index = indexOf(current, connectionId, subscriptionId);
+        Subscriber<T>[] next;
+        if (index >= 0) {
+            next = current.clone();
+            next[index] = subscriber;
+        } else {
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = subscriber;
+        }
+        subscribers = next;
+    }
+
+    /**
+     * Removes one subscription of the connection.
+     * @return whether the connection still has another subscription to this channel
+     */
+    synchronized boolean remove(int connectionId, String subscriptionId) {
+        Subscriber<T>[] current = subscribers;
+        int index = indexOf(current, connectionId, subscriptionId);
+        if (index >= 0) {
+            Subscriber<T>[] next = Arrays.copyOf(current, current.length - 1);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            subscribers = next;
+        }
+        return indexOf(subscribers, connectionId, null) >= 0;
+    }
+
+    /**
+     * Removes every subscription of the connection.
+     */
+    synchronized void removeConnection(int connectionId) {
+        Subscriber<T>[] current = subscribers;
+        Subscriber<T>[] next = Arrays.copyOf(current, current.length);
+        int count = 0;
+        for (Subscriber<T> subscriber : current) {
+            if (subscriber.connectionId != connectionId) {
+                next[count++] = subscriber;
+            }
+        }
+        if (count < current.length) {
+            subscribers = Arrays.copyOf(next, count);
+        }
+    }
+
+    // subscriptionId == null - כל מנוי של החיבור
+    private static <T> int indexOf(Subscriber<T>[] array, int connectionId, String subscriptionId) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].connectionId == connectionId
+                    && (subscriptionId == null || array[i].subscriptionId.equals(subscriptionId))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,30 @@
+package bgu.spl.net.srv;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (Java 21+) from code that is compiled for Java 8. The executor is
+ * looked up by reflection: the same classes get virtual threads when run on a JDK 21 or later,
+ * and fall back to platform threads on older JVMs.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return an executor that starts a new virtual thread per task, or a cached pool of
+     *         platform threads (the same thread per client as before) when the JVM has none
+     */
+    static ExecutorService newPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            System.out.println("Virtual threads are not available on this JVM, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import bgu.spl.net.api.MalformedMessageException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class StompEncoderDecoderTest {
+
+    private final StompEncoderDecoder decoder = new StompEncoderDecoder();
+    private final List<String> frames = new ArrayList<>();
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void decodesEveryCompleteFrameInTheBuffer() {
+        ByteBuffer buffer = bytes("SEND\ndestination:/a\n\none\u0000SEND\ndestination:/b\n\ntwo\u0000");
+        decoder.decodeComplete(buffer, frames::add);
+        assertEquals(Arrays.asList("SEND\ndestination:/a\n\none", "SEND\ndestination:/b\n\ntwo"), frames);
+        assertEquals(buffer.limit(), buffer.position());
+    }
+
+    @Test
+    void leavesAPartialFrameInTheBufferUntilItsEnd() {
+        String first = "SEND\ndestination:/a\n\none\u0000";
+        ByteBuffer buffer = bytes(first + "SEND\ndestination:/b\n\ntw");
+        decoder.decodeComplete(buffer, frames::add);
+        assertEquals(Arrays.asList("SEND\ndestination:/a\n\none"), frames);
+        assertEquals(first.length(), buffer.position());
+
+        // כמו ה-handler: הבתים שלא נצרכו ואחריהם מה שהגיע
+        ByteBuffer next = ByteBuffer.allocate(64);
+        next.put(buffer).put(bytes("o\u0000")).flip();
+        decoder.decodeComplete(next, frames::add);
+        assertEquals("SEND\ndestination:/b\n\ntwo", frames.get(1));
+        assertEquals(next.limit(), next.position());
+    }
+
+    @Test
+    void decodesFromADirectBuffer() {
+        ByteBuffer heap = bytes("CONNECT\nlogin:a\n\n\u0000DISCONNECT\n\n\u0000");
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining());
+        direct.put(heap).flip();
+        decoder.decodeComplete(direct, frames::add);
+        assertEquals(Arrays.asList("CONNECT\nlogin:a\n\n", "DISCONNECT\n\n"), frames);
+    }
+
+    @Test
+    void contentLengthKeepsNulsInTheBody() {
+        ByteBuffer buffer = bytes("SEND\ncontent-length:3\n\na\u0000b\u0000SEND\n\nx\u0000");
+        decoder.decodeComplete(buffer, frames::add);
+        assertEquals(Arrays.asList("SEND\ncontent-length:3\n\na\u0000b", "SEND\n\nx"), frames);
+    }
+
+    @Test
+    void contentLengthSplitAcrossReads() {
+        ByteBuffer buffer = bytes("SEND\ncontent-length:3\n\na\u0000");
+        decoder.decodeComplete(buffer, frames::add);
+        assertTrue(frames.isEmpty());
+        assertEquals(0, buffer.position());
+
+        ByteBuffer next = ByteBuffer.allocate(64);
+        next.put(buffer).put(bytes("b\u0000")).flip();
+        decoder.decodeComplete(next, frames::add);
+        assertEquals(Arrays.asList("SEND\ncontent-length:3\n\na\u0000b"), frames);
+    }
+
+    @Test
+    void rejectsABodyLongerThanItsContentLength() {
+        assertThrows(MalformedMessageException.class,
+                () -> decoder.decodeComplete(bytes("SEND\ncontent-length:2\n\nabc\u0000"), frames::add));
+        // גם כשהפריים נאסף בחלקים
+        StompEncoderDecoder pieces = new StompEncoderDecoder();
+        pieces.decode(bytes("SEND\ncontent-length:2\n\na"), frames::add);
+        assertThrows(MalformedMessageException.class, () -> pieces.decode(bytes("bc\u0000"), frames::add));
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    void rejectsANegativeContentLength() {
+        assertThrows(MalformedMessageException.class,
+                () -> decoder.decodeComplete(bytes("SEND\ncontent-length:-5\n\nabc\u0000"), frames::add));
+    }
+
+    @Test
+    void rejectsANonNumericContentLength() {
+        assertThrows(MalformedMessageException.class,
+                () -> decoder.decodeComplete(bytes("SEND\ncontent-length:abc\n\nabc\u0000"), frames::add));
+    }
+
+    @Test
+    void rejectsAContentLengthAboveTheFrameLimit() {
+        assertThrows(MalformedMessageException.class,
+                () -> decoder.decodeComplete(bytes("SEND\ncontent-length:99999999999\n\nabc\u0000"), frames::add));
+    }
+
+    @Test
+    void rejectsAFrameAboveTheLimit() {
+        byte[] frame = new byte[StompEncoderDecoder.MAX_FRAME_BYTES + 16];
+        Arrays.fill(frame, (byte) 'x');
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        buffer.put(bytes("SEND\n\n")).rewind();
+        assertThrows(MalformedMessageException.class, () -> decoder.decodeComplete(buffer, frames::add));
+    }
+
+    @Test
+    void decodeNextByteMatchesDecodeComplete() {
+        String frame = "SEND\ncontent-length:1\n\n\u0000";
+        String decoded = null;
+        for (byte b : (frame + "\u0000").getBytes(StandardCharsets.UTF_8)) {
+            decoded = decoder.decodeNextByte(b);
+        }
+        assertEquals(frame, decoded);
+    }
+}
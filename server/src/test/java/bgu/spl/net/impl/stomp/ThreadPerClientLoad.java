@@ -0,0 +1,172 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.Server;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load test of the thread-per-client server: starts it in this JVM in the given mode ({@code tpc}
+ * or {@code tpc-virtual}), connects idle clients that only log in and stay connected, and active
+ * clients that each subscribe to their own channel and time SEND to MESSAGE round trips. It prints
+ * the heap used and the number of live threads with all clients connected (compared with before
+ * the server started) and the round-trip latencies. Run each mode in its own JVM and compare:
+ *
+ * java -cp target/classes:target/test-classes bgu.spl.net.impl.stomp.ThreadPerClientLoad tpc 10000 1000
+ * java -cp target/classes:target/test-classes bgu.spl.net.impl.stomp.ThreadPerClientLoad tpc-virtual 10000 1000
+ *
+ * Every client is two sockets in this JVM, so the open-files limit must be above 2 * (idle + active)
+ * plus some. The clients are driven by a fixed number of threads in both modes. On JVMs without
+ * virtual threads tpc-virtual falls back to platform threads (see Server.threadPerClientVirtual).
+ */
+public class ThreadPerClientLoad {
+
+    private static final int PORT = Integer.getInteger("load.port", 7779);
+    private static final int ROUNDS = Integer.getInteger("load.rounds", 20);
+    private static final int DRIVERS = Integer.getInteger("load.drivers", 16);
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "tpc";
+        int idle = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int active = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        // בלי שרת הפייתון: המשתמשים וה-audit נשמרים ביומן זמני
+        System.setProperty("stomp.storage", "journal");
+        System.setProperty("stomp.journal.file", Files.createTempFile("load", ".journal").toString());
+        Database.getInstance();
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long heapBefore = usedHeap(memory);
+        int threadsBefore = threads.getThreadCount();
+
+        Server<String> server = mode.equals("tpc-virtual")
+                ? Server.threadPerClientVirtual(PORT, StompMessagingProtocolImpl::new, StompEncoderDecoder::new, true)
+                : Server.threadPerClient(PORT, StompMessagingProtocolImpl::new, StompEncoderDecoder::new, true);
+        Thread serverThread = new Thread(server::serve, "load-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        ExecutorService drivers = Executors.newFixedThreadPool(DRIVERS);
+        List<SocketChannel> idleClients = connectAll(drivers, "idle", idle);
+        List<SocketChannel> activeClients = connectAll(drivers, "active", active);
+        for (int i = 0; i < active; i++) {
+            send(activeClients.get(i), "SUBSCRIBE\ndestination:/load/" + i + "\nid:1\nreceipt:s\n\n");
+            receive(activeClients.get(i));
+        }
+
+        long heapConnected = usedHeap(memory);
+        int threadsConnected = threads.getThreadCount();
+
+        long[] latencies = new long[active * ROUNDS];
+        List<Future<?>> running = new ArrayList<>();
+        for (int d = 0; d < DRIVERS; d++) {
+            int first = d;
+            running.add(drivers.submit(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    for (int i = first; i < active; i += DRIVERS) {
+                        SocketChannel client = activeClients.get(i);
+                        long start = System.nanoTime();
+                        send(client, "SEND\ndestination:/load/" + i + "\n\nround " + round);
+                        receive(client);
+                        latencies[round * active + i] = System.nanoTime() - start;
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> driver : running) {
+            driver.get();
+        }
+        Arrays.sort(latencies);
+
+        System.out.println("mode " + mode + ": " + idle + " idle + " + active + " active clients");
+        System.out.printf("  heap used: %d MB before, %d MB connected (+%d MB)%n",
+                heapBefore >> 20, heapConnected >> 20, (heapConnected - heapBefore) >> 20);
+        System.out.printf("  live threads: %d before, %d connected (+%d)%n",
+                threadsBefore, threadsConnected, threadsConnected - threadsBefore);
+        if (latencies.length > 0) {
+            System.out.printf("  round trip (us): p50 %d, p99 %d, max %d over %d messages%n",
+                    percentile(latencies, 50), percentile(latencies, 99),
+                    latencies[latencies.length - 1] / 1000, latencies.length);
+        }
+
+        for (SocketChannel client : idleClients) {
+            client.close();
+        }
+        for (SocketChannel client : activeClients) {
+            client.close();
+        }
+        drivers.shutdown();
+        server.close();
+        System.exit(0);
+    }
+
+    private static List<SocketChannel> connectAll(ExecutorService drivers, String prefix, int count) throws Exception {
+        List<Future<SocketChannel>> pending = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String login = prefix + i;
+            pending.add(drivers.submit(() -> {
+                SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT));
+                send(client, "CONNECT\naccept-version:1.2\nhost:stomp\nlogin:" + login + "\npasscode:pw\n\n");
+                String reply = receive(client);
+                if (!reply.startsWith("CONNECTED")) {
+                    throw new IOException("Login of " + login + " failed: " + reply);
+                }
+                return client;
+            }));
+        }
+        List<SocketChannel> clients = new ArrayList<>();
+        for (Future<SocketChannel> client : pending) {
+            clients.add(client.get());
+        }
+        return clients;
+    }
+
+    private static void send(SocketChannel client, String frame) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((frame + "\u0000").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            client.write(bytes);
+        }
+    }
+
+    // קורא פריים אחד; השרת לא שולח ללקוח פריים נוסף לפני שהוא מגיב, אז אין בתים של הפריים הבא
+    private static String receive(SocketChannel client) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(1024);
+        while (true) {
+            if (client.read(bytes) < 0) {
+                throw new IOException("The server closed the connection");
+            }
+            if (bytes.position() > 0 && bytes.get(bytes.position() - 1) == 0) {
+                return new String(bytes.array(), 0, bytes.position() - 1, StandardCharsets.UTF_8);
+            }
+            if (!bytes.hasRemaining()) {
+                bytes = ByteBuffer.allocate(bytes.capacity() * 2).put(bytes.array(), 0, bytes.position());
+            }
+        }
+    }
+
+    private static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)] / 1000;
+    }
+}
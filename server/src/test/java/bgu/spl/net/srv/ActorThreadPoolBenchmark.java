@@ -0,0 +1,92 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Many threads submitting to many actors of one {@link ActorThreadPool}: every operation submits
+ * a batch of tasks, spread over the actors, and waits until the pool ran them. The main method
+ * runs it with 8, 16, 32 and 64 submitting threads.
+ *
+ * Run with: mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt &&
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) bgu.spl.net.srv.ActorThreadPoolBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActorThreadPoolBenchmark {
+
+    private static final int BATCH = 64;
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"1024"})
+        public int actors;
+
+        ActorThreadPool pool;
+        ActorMailbox[] mailboxes;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            pool = new ActorThreadPool(Runtime.getRuntime().availableProcessors());
+            mailboxes = new ActorMailbox[actors];
+            for (int i = 0; i < actors; i++) {
+                mailboxes[i] = new ActorMailbox();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Submitter {
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            // כל ת'רד מתחיל בשחקן אחר, כך שהת'רדים נפגשים על אותם שחקנים רק חלק מהזמן
+            next = (int) (Thread.currentThread().getId() * 31);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void submit(Pool pool, Submitter submitter) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            pool.pool.submit(pool.mailboxes[Math.floorMod(submitter.next++, pool.mailboxes.length)], done::countDown);
+        }
+        done.await();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] {8, 16, 32, 64}) {
+            new Runner(new OptionsBuilder()
+                    .include(ActorThreadPoolBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ActorThreadPoolTest {
+
+    private ActorThreadPool pool;
+
+    @AfterEach
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void runsTheTasksOfAnActorInSubmissionOrder() throws InterruptedException {
+        pool = new ActorThreadPool(4, 3);
+        ActorMailbox mailbox = new ActorMailbox();
+        List<Integer> order = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            int task = i;
+            pool.submit(mailbox, () -> {
+                order.add(task);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    @Test
+    void neverRunsTwoTasksOfOneActorAtOnce() throws InterruptedException {
+        pool = new ActorThreadPool(8, 2);
+        int actors = 16;
+        int submitters = 8;
+        int perSubmitter = 2000;
+        ActorMailbox[] mailboxes = new ActorMailbox[actors];
+        AtomicBoolean[] running = new AtomicBoolean[actors];
+        for (int i = 0; i < actors; i++) {
+            mailboxes[i] = new ActorMailbox();
+            running[i] = new AtomicBoolean();
+        }
+        AtomicBoolean overlapped = new AtomicBoolean();
+        AtomicInteger ran = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(submitters * perSubmitter);
+        Thread[] threads = new Thread[submitters];
+        for (int t = 0; t < submitters; t++) {
+            int seed = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perSubmitter; i++) {
+                    int actor = (seed + i) % actors;
+                    pool.submit(mailboxes[actor], () -> {
+                        if (!running[actor].compareAndSet(false, true)) {
+                            overlapped.set(true);
+                        }
+                        ran.incrementAndGet();
+                        running[actor].set(false);
+                        done.countDown();
+                    });
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+        assertEquals(submitters * perSubmitter, ran.get());
+    }
+
+    @Test
+    void aTaskSubmittedFromATaskOfTheSameActorRuns() throws InterruptedException {
+        pool = new ActorThreadPool(1, 1);
+        ActorMailbox mailbox = new ActorMailbox();
+        CountDownLatch done = new CountDownLatch(1);
+        pool.submit(mailbox, () -> pool.submit(mailbox, done::countDown));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void rejectsANonPositiveBatchSize() {
+        assertThrows(IllegalArgumentException.class, () -> new ActorThreadPool(1, 0));
+    }
+}
@@ -0,0 +1,190 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChannelLogTest {
+
+    // כל הרשומות באותו גודל: 16 בתים של כותרת רשומה + head + body
+    private static final int RECORD_BYTES = 16 + 4 + 4;
+    private static final long KEEP = Long.MAX_VALUE;
+
+    @TempDir
+    Path dir;
+
+    private static ByteBuffer text(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void append(ChannelLog log, long id) throws IOException {
+        log.append(id, text(String.format("h%03d", id)), text(String.format("b%03d", id)));
+    }
+
+    // ה-id של ההודעות שה-replay מחזיר, לפי הגוף שלהן
+    private static List<Long> replay(ChannelLog log, long afterId, int last) throws IOException {
+        FrameSource source = log.replay(afterId, last, text("|"));
+        List<Long> ids = new ArrayList<>();
+        ByteBuffer[] frame;
+        while ((frame = source.next()) != null) {
+            StringBuilder parts = new StringBuilder();
+            for (ByteBuffer part : frame) {
+                byte[] bytes = new byte[part.remaining()];
+                part.get(bytes);
+                parts.append(new String(bytes, StandardCharsets.UTF_8));
+            }
+            String[] headAndBody = parts.toString().split("\\|");
+            assertEquals(headAndBody[0].substring(1), headAndBody[1].substring(1));
+            ids.add(Long.parseLong(headAndBody[1].substring(1)));
+        }
+        return ids;
+    }
+
+    private static List<Long> ids(long from, long to) {
+        List<Long> ids = new ArrayList<>();
+        for (long id = from; id <= to; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private List<String> files() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                names.add(file.getFileName().toString());
+            }
+        }
+        names.sort(null);
+        return names;
+    }
+
+    @Test
+    void replaysFromAnIdAndTheLastFramesAcrossSegments() throws IOException {
+        // 4 רשומות בקובץ, כך ש-30 הודעות הן 8 קבצים
+        ChannelLog log = new ChannelLog(dir, 4 * RECORD_BYTES, KEEP, KEEP, false);
+        for (long id = 1; id <= 30; id++) {
+            append(log, id);
+        }
+        assertEquals(8, files().size());
+        assertEquals(ids(1, 30), replay(log, -1, Integer.MAX_VALUE));
+        assertEquals(ids(11, 30), replay(log, 10, Integer.MAX_VALUE));
+        assertEquals(ids(26, 30), replay(log, -1, 5));
+        // גם from וגם last: המאוחרת מבין נקודות ההתחלה
+        assertEquals(ids(28, 30), replay(log, 27, 5));
+        assertEquals(ids(26, 30), replay(log, 3, 5));
+        assertEquals(Collections.emptyList(), replay(log, 30, Integer.MAX_VALUE));
+        log.close();
+    }
+
+    @Test
+    void skipsIdsThatAreNotConsecutive() throws IOException {
+        ChannelLog log = new ChannelLog(dir, 4 * RECORD_BYTES, KEEP, KEEP, false);
+        for (long id = 10; id <= 100; id += 10) {
+            append(log, id);
+        }
+        assertEquals(Arrays.asList(50L, 60L, 70L, 80L, 90L, 100L), replay(log, 45, Integer.MAX_VALUE));
+        log.close();
+    }
+
+    @Test
+    void reopensWhereItLeftOff() throws IOException {
+        ChannelLog log = new ChannelLog(dir, 4 * RECORD_BYTES, KEEP, KEEP, false);
+        for (long id = 1; id <= 10; id++) {
+            append(log, id);
+        }
+        log.close();
+        assertEquals(10, ChannelLog.lastIdIn(dir));
+
+        ChannelLog reopened = new ChannelLog(dir, 4 * RECORD_BYTES, KEEP, KEEP, false);
+        append(reopened, 11);
+        assertEquals(ids(1, 11), replay(reopened, -1, Integer.MAX_VALUE));
+        reopened.close();
+    }
+
+    @Test
+    void aRecordWithoutItsLengthEndsTheLog() throws IOException {
+        ChannelLog log = new ChannelLog(dir, 1 << 12, KEEP, KEEP, false);
+        for (long id = 1; id <= 3; id++) {
+            append(log, id);
+        }
+        log.close();
+        // קריסה לפני שהאורך של הרשומה השלישית נכתב (האורך נכתב אחרון)
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve(files().get(0)).toFile(), "rw")) {
+            file.seek(2 * RECORD_BYTES);
+            file.writeInt(0);
+        }
+
+        ChannelLog reopened = new ChannelLog(dir, 1 << 12, KEEP, KEEP, false);
+        assertEquals(ids(1, 2), replay(reopened, -1, Integer.MAX_VALUE));
+        append(reopened, 4);
+        assertEquals(Arrays.asList(1L, 2L, 4L), replay(reopened, -1, Integer.MAX_VALUE));
+        reopened.close();
+    }
+
+    @Test
+    void deletesTheOldestSegmentsOverTheSizeLimit() throws IOException {
+        ChannelLog log = new ChannelLog(dir, 4 * RECORD_BYTES, 8 * RECORD_BYTES, KEEP, false);
+        for (long id = 1; id <= 30; id++) {
+            append(log, id);
+        }
+        // שני קבצים סגורים נשארים, ועוד הקובץ שנכתב
+        assertEquals(ids(21, 30), replay(log, -1, Integer.MAX_VALUE));
+        assertEquals(3, files().size());
+        log.close();
+    }
+
+    @Test
+    void expireDeletesTheActiveSegmentOnceItIsPastTheAgeLimit() throws IOException, InterruptedException {
+        ChannelLog log = new ChannelLog(dir, 4 * RECORD_BYTES, KEEP, 100, false);
+        for (long id = 1; id <= 6; id++) {
+            append(log, id);
+        }
+        log.expire();
+        assertEquals(ids(1, 6), replay(log, -1, Integer.MAX_VALUE));
+
+        Thread.sleep(200);
+        log.expire();
+        assertEquals(Collections.emptyList(), replay(log, -1, Integer.MAX_VALUE));
+        // נשאר קובץ ריק בשם lastId + 1, כדי שה-id ימשיכו ממנו גם אחרי הפעלה מחדש
+        assertEquals(Arrays.asList(String.format("%020d.log", 7)), files());
+        log.close();
+        assertTrue(ChannelLog.lastIdIn(dir) >= 6);
+
+        ChannelLog reopened = new ChannelLog(dir, 4 * RECORD_BYTES, KEEP, 100, false);
+        append(reopened, 8);
+        assertEquals(Arrays.asList(8L), replay(reopened, -1, Integer.MAX_VALUE));
+        reopened.close();
+    }
+
+    @Test
+    void aReplayKeepsReadingSegmentsDeletedAfterItStarted() throws IOException {
+        ChannelLog log = new ChannelLog(dir, 4 * RECORD_BYTES, 4 * RECORD_BYTES, KEEP, false);
+        for (long id = 1; id <= 8; id++) {
+            append(log, id);
+        }
+        FrameSource source = log.replay(-1, Integer.MAX_VALUE, text("|"));
+        for (long id = 9; id <= 20; id++) {
+            append(log, id);
+        }
+        int count = 0;
+        while (source.next() != null) {
+            count++;
+        }
+        assertEquals(8, count);
+        log.close();
+    }
+}
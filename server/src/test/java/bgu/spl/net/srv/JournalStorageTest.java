@@ -0,0 +1,144 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalStorageTest {
+
+    @TempDir
+    Path dir;
+
+    private static List<String[]> scan(Storage storage, Storage.Table table, int pageSize) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        storage.scan(table, pageSize, rows::add);
+        return rows;
+    }
+
+    @Test
+    void replaysUsersAndAuditAfterARestart() throws IOException {
+        Path path = dir.resolve("journal");
+        JournalStorage storage = new JournalStorage(path, false);
+        storage.addUser("alice", "pw1");
+        storage.addUser("bob", "pw2");
+        AuditRecord login = AuditRecord.login("alice");
+        AuditRecord upload = AuditRecord.fileUpload("alice", "game.json");
+        AuditRecord logout = AuditRecord.logout("alice");
+        storage.writeAudit(Arrays.asList(login, upload, logout));
+        storage.close();
+
+        JournalStorage reopened = new JournalStorage(path, false);
+        assertEquals("pw1", reopened.findPassword("alice"));
+        assertEquals("pw2", reopened.findPassword("bob"));
+        List<String[]> logins = scan(reopened, Storage.Table.LOGIN_HISTORY, 10);
+        assertEquals(1, logins.size());
+        assertArrayEquals(new String[] {"alice", login.getTime(), logout.getTime()}, logins.get(0));
+        List<String[]> uploads = scan(reopened, Storage.Table.UPLOADED_FILES, 10);
+        assertArrayEquals(new String[] {"alice", "game.json", upload.getTime()}, uploads.get(0));
+        reopened.close();
+    }
+
+    @Test
+    void truncatesATornLastEntry() throws IOException {
+        Path path = dir.resolve("journal");
+        JournalStorage storage = new JournalStorage(path, false);
+        storage.addUser("alice", "pw1");
+        storage.close();
+        long complete = Files.size(path);
+
+        storage = new JournalStorage(path, false);
+        storage.addUser("bob", "pw2");
+        storage.close();
+        // קריסה באמצע כתיבת הרשומה של bob
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.setLength(Files.size(path) - 2);
+        }
+
+        JournalStorage reopened = new JournalStorage(path, false);
+        assertEquals("pw1", reopened.findPassword("alice"));
+        assertNull(reopened.findPassword("bob"));
+        assertEquals(complete, Files.size(path));
+        // הכתיבה הבאה ממשיכה אחרי הרשומה השלמה האחרונה
+        reopened.addUser("carol", "pw3");
+        reopened.close();
+
+        JournalStorage again = new JournalStorage(path, false);
+        assertEquals("pw1", again.findPassword("alice"));
+        assertEquals("pw3", again.findPassword("carol"));
+        again.close();
+    }
+
+    @Test
+    void scansEveryRowPageByPage() throws IOException {
+        JournalStorage storage = new JournalStorage(dir.resolve("journal"), false);
+        List<AuditRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            batch.add(AuditRecord.login("user" + i));
+        }
+        storage.writeAudit(batch);
+        List<String[]> rows = scan(storage, Storage.Table.LOGIN_HISTORY, 10);
+        assertEquals(25, rows.size());
+        for (int i = 0; i < 25; i++) {
+            assertEquals("user" + i, rows.get(i)[0]);
+            assertNull(rows.get(i)[2]);
+        }
+        storage.close();
+    }
+
+    @Test
+    void keepsAFileNameLongerThanWriteUtfAllows() throws IOException {
+        Path path = dir.resolve("journal");
+        char[] name = new char[70 * 1024];
+        Arrays.fill(name, 'x');
+        String fileName = new String(name);
+        JournalStorage storage = new JournalStorage(path, false);
+        AuditRecord upload = AuditRecord.fileUpload("alice", fileName);
+        storage.writeAudit(Arrays.asList(AuditRecord.login("alice"), upload, AuditRecord.logout("alice")));
+        // הרשומה הבאה עדיין נקראת במקום הנכון
+        storage.addUser("bob", "pw2");
+        storage.close();
+
+        JournalStorage reopened = new JournalStorage(path, false);
+        List<String[]> uploads = scan(reopened, Storage.Table.UPLOADED_FILES, 10);
+        assertEquals(1, uploads.size());
+        assertArrayEquals(new String[] {"alice", fileName, upload.getTime()}, uploads.get(0));
+        assertEquals(1, scan(reopened, Storage.Table.LOGIN_HISTORY, 10).size());
+        assertEquals("pw2", reopened.findPassword("bob"));
+        reopened.close();
+    }
+
+    @Test
+    void readsAJournalOfTheWriteUtfFormat() throws IOException {
+        Path path = dir.resolve("journal");
+        try (DataOutputStream old = new DataOutputStream(new FileOutputStream(path.toFile()))) {
+            old.writeByte('U');
+            old.writeUTF("alice");
+            old.writeUTF("pw1");
+            old.writeByte('I');
+            old.writeUTF("alice");
+            old.writeUTF("2026-01-01 00:00:00");
+        }
+        JournalStorage storage = new JournalStorage(path, false);
+        storage.addUser("bob", "pw2");
+        storage.close();
+
+        JournalStorage reopened = new JournalStorage(path, false);
+        assertEquals("pw1", reopened.findPassword("alice"));
+        assertEquals("pw2", reopened.findPassword("bob"));
+        assertArrayEquals(new String[] {"alice", "2026-01-01 00:00:00", null},
+                scan(reopened, Storage.Table.LOGIN_HISTORY, 10).get(0));
+        reopened.close();
+    }
+}
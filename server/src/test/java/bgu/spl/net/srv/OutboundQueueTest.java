@@ -0,0 +1,181 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+
+    private static ByteBuffer[] frame(String text) {
+        return new ByteBuffer[] {ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8))};
+    }
+
+    private static FrameSource source(String... frames) {
+        Iterator<String> next = Arrays.asList(frames).iterator();
+        return () -> next.hasNext() ? frame(next.next()) : null;
+    }
+
+    // מה שהכותב יכתוב עכשיו, כמחרוזות (לכל הודעה בבדיקות יש חלק אחד)
+    private static List<String> gather(OutboundQueue queue) {
+        ByteBuffer[] parts = new ByteBuffer[16];
+        int count = queue.gather(parts, Long.MAX_VALUE);
+        List<String> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer part = parts[i].duplicate();
+            byte[] bytes = new byte[part.remaining()];
+            part.get(bytes);
+            frames.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return frames;
+    }
+
+    // כמו כתיבה מלאה לסוקט של כל מה שנאסף
+    private static List<String> writeAll(OutboundQueue queue) {
+        ByteBuffer[] parts = new ByteBuffer[16];
+        List<String> written = new ArrayList<>();
+        int count;
+        while ((count = queue.gather(parts, Long.MAX_VALUE)) > 0) {
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[parts[i].remaining()];
+                parts[i].get(bytes);
+                written.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            queue.removeWritten();
+        }
+        return written;
+    }
+
+    @Test
+    void writesFramesInOrder() {
+        OutboundQueue queue = new OutboundQueue(10, 1000, OutboundQueue.Policy.DISCONNECT);
+        assertTrue(queue.offer(frame("a")));
+        assertTrue(queue.offer(frame("b")));
+        assertEquals(Arrays.asList("a", "b"), writeAll(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void dropNewestDropsTheOfferedFrame() {
+        OutboundQueue queue = new OutboundQueue(2, 1000, OutboundQueue.Policy.DROP_NEWEST);
+        queue.offer(frame("a"));
+        queue.offer(frame("b"));
+        assertTrue(queue.offer(frame("c")));
+        assertEquals(1, queue.droppedFrames());
+        assertEquals(Arrays.asList("a", "b"), writeAll(queue));
+    }
+
+    @Test
+    void theByteLimitCountsToo() {
+        OutboundQueue queue = new OutboundQueue(10, 10, OutboundQueue.Policy.DROP_NEWEST);
+        queue.offer(frame("12345678"));
+        queue.offer(frame("12345678"));
+        assertEquals(1, queue.droppedFrames());
+        assertEquals(Arrays.asList("12345678"), writeAll(queue));
+    }
+
+    @Test
+    void dropOldestDropsPendingFramesButNotInFlightOnes() {
+        OutboundQueue queue = new OutboundQueue(2, 1000, OutboundQueue.Policy.DROP_OLDEST);
+        queue.offer(frame("a"));
+        assertEquals(Arrays.asList("a"), gather(queue)); // a נמסר לכותב ולא נכתב עדיין
+        queue.offer(frame("b"));
+        queue.offer(frame("c"));
+        assertEquals(1, queue.droppedFrames());
+        assertEquals(Arrays.asList("a", "c"), writeAll(queue));
+    }
+
+    @Test
+    void dropOldestDropsTheNewFrameWhenEverythingIsInFlight() {
+        OutboundQueue queue = new OutboundQueue(1, 1000, OutboundQueue.Policy.DROP_OLDEST);
+        queue.offer(frame("a"));
+        gather(queue);
+        queue.offer(frame("b"));
+        assertEquals(1, queue.droppedFrames());
+        assertEquals(Arrays.asList("a"), writeAll(queue));
+    }
+
+    @Test
+    void dropOldestNeverDropsASource() {
+        OutboundQueue queue = new OutboundQueue(2, 1000, OutboundQueue.Policy.DROP_OLDEST);
+        queue.offer(source("r1", "r2", "r3"));
+        queue.offer(frame("a"));
+        queue.offer(frame("b"));
+        assertEquals(1, queue.droppedFrames());
+        assertEquals(Arrays.asList("r1", "r2", "r3", "b"), writeAll(queue));
+    }
+
+    @Test
+    void aSourceIsQueuedWhenTheQueueIsFull() {
+        OutboundQueue queue = new OutboundQueue(1, 1000, OutboundQueue.Policy.DISCONNECT);
+        assertTrue(queue.offer(frame("a")));
+        assertTrue(queue.offer(source("r1", "r2")));
+        assertEquals(Arrays.asList("a", "r1", "r2"), writeAll(queue));
+    }
+
+    @Test
+    void framesOfferedAfterASourceAreWrittenAfterAllOfIt() {
+        OutboundQueue queue = new OutboundQueue(10, 1000, OutboundQueue.Policy.DISCONNECT);
+        queue.offer(source("r1", "r2"));
+        queue.offer(frame("live"));
+        assertEquals(Arrays.asList("r1", "r2", "live"), writeAll(queue));
+    }
+
+    @Test
+    void disconnectAbortsWithTheLastFrame() {
+        OutboundQueue queue = new OutboundQueue(2, 1000, OutboundQueue.Policy.DISCONNECT);
+        queue.offer(frame("a"));
+        queue.offer(source("r1", "r2"));
+        assertFalse(queue.offer(frame("b")));
+        queue.abort(frame("ERROR"));
+        assertTrue(queue.isClosing());
+        // a ושתי ההודעות של ה-source לא יישלחו
+        assertEquals(3, queue.droppedFrames());
+        assertTrue(queue.offer(frame("c")));
+        assertEquals(4, queue.droppedFrames());
+        assertEquals(Arrays.asList("ERROR"), writeAll(queue));
+    }
+
+    @Test
+    void finishKeepsWhatIsQueued() {
+        OutboundQueue queue = new OutboundQueue(10, 1000, OutboundQueue.Policy.DISCONNECT);
+        queue.offer(frame("RECEIPT"));
+        queue.finish();
+        queue.offer(frame("late"));
+        assertTrue(queue.isClosing());
+        assertEquals(Arrays.asList("RECEIPT"), writeAll(queue));
+    }
+
+    @Test
+    void awaitFramesGivesUpAfterTheTimeoutButNotWhileFramesAreQueued() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(10, 1000, OutboundQueue.Policy.DISCONNECT);
+        assertFalse(queue.awaitFrames(TimeUnit.MILLISECONDS.toNanos(10)));
+        queue.offer(frame("a"));
+        assertTrue(queue.awaitFrames(0));
+        writeAll(queue);
+        queue.finish();
+        assertFalse(queue.awaitFrames(Long.MAX_VALUE));
+    }
+
+    @Test
+    void aPartiallyWrittenFrameStaysInFlight() {
+        OutboundQueue queue = new OutboundQueue(10, 1000, OutboundQueue.Policy.DISCONNECT);
+        queue.offer(frame("abcd"));
+        ByteBuffer[] parts = new ByteBuffer[4];
+        assertEquals(1, queue.gather(parts, Long.MAX_VALUE));
+        parts[0].position(2);
+        assertTrue(queue.removeWritten());
+        assertEquals(Arrays.asList("cd"), gather(queue));
+        parts[0].position(4);
+        assertFalse(queue.removeWritten());
+        assertTrue(queue.isEmpty());
+    }
+}
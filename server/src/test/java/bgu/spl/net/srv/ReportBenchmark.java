@@ -0,0 +1,165 @@
+package bgu.spl.net.srv;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The server report over 1M login rows: {@link ReportWriter} streaming the rows page by page,
+ * against the way the report used to be built (the whole table fetched as one "SUCCESS|(...)|..."
+ * string, split on '|' and every row cleaned with replace). It prints the time and the peak heap
+ * of each. The rows come from an in-memory generator, so the numbers are those of the report code
+ * alone; with "sql" as the first argument the streaming report reads from the running SQL sidecar
+ * instead, after inserting the rows into its Login_History.
+ *
+ * java -Xmx512m -cp target/classes:target/test-classes bgu.spl.net.srv.ReportBenchmark [generated|sql] [rows] [pageSize]
+ */
+public class ReportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String source = args.length > 0 ? args[0] : "generated";
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int pageSize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        Path report = Files.createTempFile("report", ".txt");
+
+        Storage storage;
+        if (source.equals("sql")) {
+            storage = new SqlSidecarStorage("127.0.0.1", 7778, 2);
+            insertLogins(storage, rows);
+        } else {
+            storage = new GeneratedStorage(rows);
+        }
+
+        resetPeaks();
+        long start = System.nanoTime();
+        new ReportWriter(storage, pageSize).write(report);
+        System.out.printf("streaming (%s, page %d): %d ms, peak heap %d MB, %d MB written%n",
+                source, pageSize, (System.nanoTime() - start) / 1_000_000, peakHeap() >> 20, Files.size(report) >> 20);
+
+        if (storage instanceof GeneratedStorage) {
+            resetPeaks();
+            start = System.nanoTime();
+            try {
+                writeWholeTable((GeneratedStorage) storage, Files.newOutputStream(report));
+                System.out.printf("whole table string: %d ms, peak heap %d MB%n",
+                        (System.nanoTime() - start) / 1_000_000, peakHeap() >> 20);
+            } catch (OutOfMemoryError e) {
+                System.out.printf("whole table string: OutOfMemoryError after %d ms%n",
+                        (System.nanoTime() - start) / 1_000_000);
+            }
+        }
+        storage.close();
+        Files.delete(report);
+    }
+
+    // ההתחברויות נכנסות במנות, כמו ש-AuditWriter כותב אותן
+    private static void insertLogins(Storage storage, int rows) throws IOException {
+        AuditRecord[] batch = new AuditRecord[SqlConnectionPool.MAX_BATCH];
+        for (int done = 0; done < rows; ) {
+            int count = Math.min(batch.length, rows - done);
+            for (int i = 0; i < count; i++) {
+                batch[i] = AuditRecord.login("user" + (done + i) % 1000);
+            }
+            storage.writeAudit(Arrays.asList(batch).subList(0, count));
+            done += count;
+        }
+    }
+
+    // הדרך הישנה: כל הטבלה כמחרוזת אחת, split ו-replace לכל שורה
+    private static void writeWholeTable(GeneratedStorage storage, OutputStream file) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8))) {
+            StringBuilder result = new StringBuilder("SUCCESS");
+            for (int i = 0; i < storage.rows; i++) {
+                String[] row = storage.row(i);
+                result.append("|('").append(row[0]).append("', '").append(row[1]).append("', '").append(row[2] == null ? "None" : row[2]).append("')");
+            }
+            String[] parts = result.toString().split("\\|");
+            for (int i = 1; i < parts.length; i++) {
+                String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
+                out.write(fields[0] + " " + fields[1] + " " + fields[2]);
+                out.newLine();
+            }
+        }
+    }
+
+    private static void resetPeaks() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    // טבלת התחברויות שנוצרת בזמן הקריאה, עמוד אחרי עמוד, בלי להחזיק אותה בזיכרון
+    private static final class GeneratedStorage implements Storage {
+        final int rows;
+
+        GeneratedStorage(int rows) {
+            this.rows = rows;
+        }
+
+        String[] row(int i) {
+            return new String[] {"user" + i % 1000, "2026-01-01 00:00:" + String.format("%02d", i % 60),
+                    i % 10 == 0 ? null : "2026-01-01 01:00:00"};
+        }
+
+        @Override
+        public void scan(Table table, int pageSize, RowConsumer consumer) throws IOException {
+            int count = table == Table.LOGIN_HISTORY ? rows : 0;
+            String[][] page = new String[pageSize][];
+            for (int first = 0; first < count; first += pageSize) {
+                int size = Math.min(pageSize, count - first);
+                for (int i = 0; i < size; i++) {
+                    page[i] = row(first + i);
+                }
+                for (int i = 0; i < size; i++) {
+                    consumer.accept(page[i]);
+                }
+            }
+        }
+
+        @Override
+        public Map<String, String> loadUsers() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String findPassword(String username) {
+            return null;
+        }
+
+        @Override
+        public void addUser(String username, String password) {
+        }
+
+        @Override
+        public void writeAudit(List<AuditRecord> batch) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Broadcasting one frame to a channel: the copy-on-write {@link SubscriberSet} against the
+ * subscriber map it replaced (a {@code ConcurrentHashMap<Integer, Boolean>} per channel, iterated
+ * with a lookup of every recipient's handler in the map of active connections).
+ *
+ * Run with: mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt &&
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) bgu.spl.net.srv.SubscriberSetBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriberSetBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    public int subscribers;
+
+    private final ByteBuffer head = ByteBuffer.wrap("MESSAGE\ndestination:/game\n".getBytes(StandardCharsets.UTF_8));
+    private final ByteBuffer body = ByteBuffer.wrap(new byte[256]);
+
+    private SubscriberSet<String> set;
+    private Map<Integer, Boolean> channelMap;
+    private Map<Integer, ConnectionHandler<String>> activeConnections;
+
+    // handler שרק מעביר את החלקים ל-Blackhole, כדי למדוד את המעבר על המנויים ולא את הכתיבה
+    private static final class SinkHandler implements ConnectionHandler<String> {
+        Blackhole sink;
+
+        @Override
+        public void send(String msg) {
+            sink.consume(msg);
+        }
+
+        @Override
+        public void sendEncoded(ByteBuffer... parts) {
+            sink.consume(parts);
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private SinkHandler[] handlers;
+
+    @Setup
+    public void setUp(Blackhole sink) {
+        set = new SubscriberSet<>();
+        channelMap = new ConcurrentHashMap<>();
+        activeConnections = new ConcurrentHashMap<>();
+        handlers = new SinkHandler[subscribers];
+        for (int id = 0; id < subscribers; id++) {
+            SinkHandler handler = new SinkHandler();
+            handler.sink = sink;
+            handlers[id] = handler;
+            ByteBuffer header = ByteBuffer.wrap(("subscription:" + id + "\n").getBytes(StandardCharsets.UTF_8));
+            set.add(id, String.valueOf(id), handler, header);
+            channelMap.put(id, Boolean.TRUE);
+            activeConnections.put(id, handler);
+        }
+    }
+
+    @Benchmark
+    public void subscriberSet() {
+        for (SubscriberSet.Subscriber<String> subscriber : set.snapshot()) {
+            subscriber.handler.sendEncoded(head, subscriber.header, body);
+        }
+    }
+
+    @Benchmark
+    public void concurrentHashMap() {
+        for (Integer id : channelMap.keySet()) {
+            ConnectionHandler<String> handler = activeConnections.get(id);
+            if (handler != null) {
+                handler.sendEncoded(head, body);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SubscriberSetBenchmark.class.getSimpleName()).build()).run();
+    }
+}